@@ -26,7 +26,18 @@ public interface AppDelegate {
 
     @NotNull
     default LogFileResolver getLogFileResolver() {
-        return () -> new File(".log");
+        return new LogFileResolver() {
+            @NotNull
+            @Override
+            public File getCurrentLogFile() {
+                return new File(".log");
+            }
+
+            @Override
+            public boolean usesOnLog() {
+                return false;
+            }
+        };
     }
 
     default ExecutorService createGlobalThreadPool() {
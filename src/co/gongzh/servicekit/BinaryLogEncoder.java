@@ -0,0 +1,130 @@
+package co.gongzh.servicekit;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encodes log lines in the compact binary format read by {@link BinaryLogReader}.
+ * <p>
+ * A file is a sequence of blocks, each ending with <code>'\n'</code> so
+ * that a file never ends with a zero byte:
+ * <ul>
+ *     <li>header: <code>"SKLB"</code>, version byte, zone id (varint length
+ *     and UTF-8). Starts a new session: the tag dictionary and the time
+ *     base are reset. Written every time the file is opened.</li>
+ *     <li>tag: <code>'T'</code>, varint id, varint length, UTF-8 name.</li>
+ *     <li>record: level byte (<code>'i'</code>, <code>'w'</code> or
+ *     <code>'e'</code>), zigzag varint of the epoch millis delta to the
+ *     previous record, varint tag id, varint length, UTF-8 message.</li>
+ * </ul>
+ * Used by the writer thread only, so it is not thread safe.
+ *
+ * @author Gong Zhang
+ */
+final class BinaryLogEncoder {
+
+    static final byte[] MAGIC = { 'S', 'K', 'L', 'B' };
+    static final int VERSION = 1;
+    static final byte TAG = 'T';
+    static final byte END = '\n';
+
+    private static final int MAX_TAGS = 4096;
+
+    @NotNull private final byte[] zoneId;
+    @NotNull private final Map<String, Integer> tags;
+    private boolean headerWritten;
+    private long lastTime;
+
+    BinaryLogEncoder(@NotNull ZoneId zoneId) {
+        this.zoneId = zoneId.getId().getBytes(StandardCharsets.UTF_8);
+        this.tags = new HashMap<>();
+    }
+
+    /**
+     * Starts a new session. Called whenever a file is opened.
+     */
+    void reset() {
+        headerWritten = false;
+    }
+
+    void encodeLine(long time, char level, @NotNull String tag, @NotNull String message, int from, int to,
+                    @NotNull LogByteBuffer out) {
+        if (!headerWritten || tags.size() >= MAX_TAGS) {
+            out.put(MAGIC);
+            putByte(out, VERSION);
+            putVarLong(out, zoneId.length);
+            out.put(zoneId);
+            putByte(out, END);
+            tags.clear();
+            lastTime = 0;
+            headerWritten = true;
+        }
+
+        Integer id = tags.get(tag);
+        if (id == null) {
+            id = tags.size();
+            tags.put(tag, id);
+            putByte(out, TAG);
+            putVarLong(out, id);
+            putVarLong(out, utf8Length(tag, 0, tag.length()));
+            LogEncoder.putUTF8(tag, 0, tag.length(), out);
+            putByte(out, END);
+        }
+
+        long delta = time - lastTime;
+        lastTime = time;
+        putByte(out, level);
+        putVarLong(out, (delta << 1) ^ (delta >> 63));
+        putVarLong(out, id);
+        putVarLong(out, utf8Length(message, from, to));
+        LogEncoder.putUTF8(message, from, to, out);
+        putByte(out, END);
+    }
+
+    private static void putByte(@NotNull LogByteBuffer out, int b) {
+        out.ensure(1);
+        out.array[out.length++] = (byte) b;
+    }
+
+    private static void putVarLong(@NotNull LogByteBuffer out, long value) {
+        out.ensure(10);
+        byte[] a = out.array;
+        int n = out.length;
+        while ((value & ~0x7FL) != 0) {
+            a[n++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        a[n++] = (byte) value;
+        out.length = n;
+    }
+
+    /**
+     * @return the number of bytes {@link LogEncoder#putUTF8} writes for the same range.
+     */
+    private static int utf8Length(@NotNull String s, int from, int to) {
+        int length = 0;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    length += 4;
+                    i++;
+                } else {
+                    length += 1;
+                }
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+}
@@ -0,0 +1,189 @@
+package co.gongzh.servicekit;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads log files written with {@link LogConfig.Format#BINARY}, see
+ * {@link BinaryLogEncoder} for the layout.
+ *
+ * @author Gong Zhang
+ */
+public final class BinaryLogReader implements Closeable {
+
+    @NotNull private final InputStream in;
+    @NotNull private final DateTimeFormatter formatter;
+    @NotNull private final List<String> tags;
+    @Nullable private ZoneId zoneId;
+    private long lastTime;
+    private byte[] buffer;
+
+    public BinaryLogReader(@NotNull InputStream in) {
+        this(in, Log.getDateTimeFormatter());
+    }
+
+    /**
+     * @param formatter used to fill {@link LogParser.Line#timestamp}
+     */
+    public BinaryLogReader(@NotNull InputStream in, @NotNull DateTimeFormatter formatter) {
+        this.in = in instanceof BufferedInputStream ? in : new BufferedInputStream(in, 65536);
+        this.formatter = formatter;
+        this.tags = new ArrayList<>();
+        this.buffer = new byte[256];
+    }
+
+    /**
+     * Reads the next record.
+     * @return the record, or {@code null} at the end of the stream.
+     * @throws IOException if the stream is not a valid binary log.
+     */
+    @Nullable
+    public LogParser.Line next() throws IOException {
+        while (true) {
+            int type = in.read();
+            switch (type) {
+                case -1:
+                case 0: // the unused tail of a memory-mapped file
+                    return null;
+
+                case 'S':
+                    readHeader();
+                    break;
+
+                case BinaryLogEncoder.TAG: {
+                    int id = (int) readVarLong();
+                    String tag = readString();
+                    readEnd();
+                    if (id != tags.size()) {
+                        throw new IOException("unexpected tag id " + id);
+                    }
+                    tags.add(tag);
+                    break;
+                }
+
+                case 'i':
+                case 'w':
+                case 'e': {
+                    if (zoneId == null) {
+                        throw new IOException("record before header");
+                    }
+                    long delta = readVarLong();
+                    long time = lastTime + ((delta >>> 1) ^ -(delta & 1));
+                    lastTime = time;
+                    int id = (int) readVarLong();
+                    if (id < 0 || id >= tags.size()) {
+                        throw new IOException("unknown tag id " + id);
+                    }
+                    String message = readString();
+                    readEnd();
+
+                    LogParser.Line line = new LogParser.Line();
+                    line.dateTime = OffsetDateTime.ofInstant(Instant.ofEpochMilli(time), zoneId);
+                    line.timestamp = line.dateTime.format(formatter);
+                    line.level = (char) type;
+                    line.tag = tags.get(id);
+                    line.message = message;
+                    return line;
+                }
+
+                default:
+                    throw new IOException("unknown block type " + type);
+            }
+        }
+    }
+
+    /**
+     * Reads all remaining records.
+     */
+    @NotNull
+    public List<LogParser.Line> readAll() throws IOException {
+        List<LogParser.Line> lines = new ArrayList<>();
+        LogParser.Line line;
+        while ((line = next()) != null) {
+            lines.add(line);
+        }
+        return lines;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void readHeader() throws IOException {
+        for (int i = 1; i < BinaryLogEncoder.MAGIC.length; i++) {
+            if (readByte() != BinaryLogEncoder.MAGIC[i]) {
+                throw new IOException("bad magic");
+            }
+        }
+        int version = readByte();
+        if (version != BinaryLogEncoder.VERSION) {
+            throw new IOException("unsupported version " + version);
+        }
+        zoneId = ZoneId.of(readString());
+        readEnd();
+        tags.clear();
+        lastTime = 0;
+    }
+
+    private void readEnd() throws IOException {
+        if (readByte() != BinaryLogEncoder.END) {
+            throw new IOException("corrupted block");
+        }
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if (b == -1) {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    @NotNull
+    private String readString() throws IOException {
+        long length = readVarLong();
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new IOException("malformed length");
+        }
+        int n = (int) length;
+        if (buffer.length < n) {
+            buffer = new byte[Math.max(n, buffer.length * 2)];
+        }
+        int read = 0;
+        while (read < n) {
+            int r = in.read(buffer, read, n - read);
+            if (r == -1) {
+                throw new EOFException();
+            }
+            read += r;
+        }
+        return new String(buffer, 0, n, StandardCharsets.UTF_8);
+    }
+
+}
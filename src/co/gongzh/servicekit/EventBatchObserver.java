@@ -0,0 +1,27 @@
+package co.gongzh.servicekit;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An observer that takes several events at once, see
+ * {@link EventDispatch#addBatchObserver(EventBatchObserver)}.
+ *
+ * @author Gong Zhang
+ */
+@FunctionalInterface
+public interface EventBatchObserver<T> extends EventObserver<T> {
+
+    /**
+     * @param events in the order they were fired, never empty.
+     */
+    void notifyBatch(@NotNull List<EventDispatch.Event<T>> events);
+
+    @Override
+    default void notify(@NotNull EventDispatch.Event<T> event) {
+        notifyBatch(Collections.singletonList(event));
+    }
+
+}
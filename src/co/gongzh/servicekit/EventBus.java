@@ -0,0 +1,265 @@
+package co.gongzh.servicekit;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Routes events by hierarchical topic names like <code>orders.eu.created</code>.
+ * Every topic has its own {@link EventDispatch}. Observers subscribe with
+ * patterns in which <code>*</code> stands for exactly one segment and
+ * <code>**</code> for any number of segments, e.g. <code>orders.*.created</code>
+ * or <code>orders.**</code>.
+ * <p>
+ * Patterns are resolved when a subscription or a topic is added, not when
+ * publishing: a subscription is added as an observer to the dispatch of
+ * every matching topic, found by walking a trie of the topics, and a new
+ * topic picks up the matching subscriptions from a trie of the patterns.
+ * Publishing is one hash lookup plus the fire of a single dispatch.
+ *
+ * @author Gong Zhang
+ */
+public final class EventBus<T> {
+
+    private static final String ONE = "*";
+    private static final String ANY = "**";
+
+    private static final class Node<V> {
+
+        @NotNull final Map<String, Node<V>> children = new HashMap<>();
+        @NotNull final List<V> values = new ArrayList<>(1);
+
+        @NotNull
+        Node<V> child(@NotNull String segment) {
+            return children.computeIfAbsent(segment, s -> new Node<>());
+        }
+
+    }
+
+    private final class Subscription implements Comparable<Subscription> {
+
+        final int id;
+        @NotNull final String[] pattern;
+        @NotNull final EventObserver<T> observer;
+        @NotNull final EventDispatch.Delivery delivery;
+        // shared by the topics of an ASYNC_ORDERED subscription
+        @Nullable final EventDispatch.SerialQueue serial;
+        // dispatch to observer id
+        @NotNull final Map<EventDispatch<T>, Integer> registrations = new HashMap<>();
+
+        Subscription(int id, @NotNull String[] pattern, @NotNull EventObserver<T> observer,
+                     @NotNull EventDispatch.Delivery delivery) {
+            this.id = id;
+            this.pattern = pattern;
+            this.observer = observer;
+            this.delivery = delivery;
+            this.serial = delivery == EventDispatch.Delivery.ASYNC_ORDERED ? new EventDispatch.SerialQueue(executor) : null;
+        }
+
+        void attach(@NotNull EventDispatch<T> dispatch) {
+            int observerId = serial != null ? dispatch.addObserver(observer, serial) : dispatch.addObserver(observer, delivery);
+            registrations.put(dispatch, observerId);
+        }
+
+        @Override
+        public int compareTo(@NotNull Subscription o) {
+            return Integer.compare(id, o.id);
+        }
+
+    }
+
+    @NotNull private final String name;
+    @NotNull private final Executor executor;
+    @NotNull private final ConcurrentHashMap<String, EventDispatch<T>> dispatches = new ConcurrentHashMap<>();
+    // guarded by this
+    @NotNull private final Node<EventDispatch<T>> topics = new Node<>();
+    @NotNull private final Node<Subscription> patterns = new Node<>();
+    @NotNull private final Map<Integer, Subscription> subscriptions = new HashMap<>();
+    private int nextSubscriptionId = 1;
+
+    public EventBus(@NotNull String name) {
+        this(name, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param executor runs asynchronous observers, see {@link EventDispatch.Delivery}.
+     */
+    public EventBus(@NotNull String name, @NotNull Executor executor) {
+        this.name = name;
+        this.executor = executor;
+    }
+
+    @NotNull
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the dispatch of <code>topic</code>, creating it with the
+     * observers of all matching subscriptions if needed.
+     * @throws IllegalArgumentException if the topic is empty, has an empty
+     *         segment or a wildcard.
+     */
+    @NotNull
+    public EventDispatch<T> topic(@NotNull String topic) {
+        EventDispatch<T> dispatch = dispatches.get(topic);
+        return dispatch != null ? dispatch : createTopic(topic);
+    }
+
+    /**
+     * Fires <code>arg</code> on the dispatch of <code>topic</code>.
+     */
+    public void publish(@NotNull String topic, T arg) {
+        topic(topic).fire(arg);
+    }
+
+    public int subscribe(@NotNull String pattern, @NotNull EventObserver<T> observer) {
+        return subscribe(pattern, observer, EventDispatch.Delivery.SYNC);
+    }
+
+    /**
+     * Adds <code>observer</code> to every current and future topic that
+     * matches <code>pattern</code>. An observer of several topics is
+     * notified by each of their dispatches. An ASYNC_ORDERED observer has
+     * one queue for all of its topics, so it is notified one event at a
+     * time and in the order the events were published.
+     * @return an id for {@link #unsubscribe(int)}.
+     */
+    public synchronized int subscribe(@NotNull String pattern, @NotNull EventObserver<T> observer,
+                                      @NotNull EventDispatch.Delivery delivery) {
+        String[] segments = split(pattern, true);
+        Subscription subscription = new Subscription(nextSubscriptionId++, segments, observer, delivery);
+        Node<Subscription> node = patterns;
+        for (String segment : segments) {
+            node = node.child(segment);
+        }
+        node.values.add(subscription);
+        subscriptions.put(subscription.id, subscription);
+
+        Set<EventDispatch<T>> matched = new LinkedHashSet<>();
+        collectTopics(topics, segments, 0, matched);
+        for (EventDispatch<T> dispatch : matched) {
+            subscription.attach(dispatch);
+        }
+        return subscription.id;
+    }
+
+    public synchronized boolean unsubscribe(int id) {
+        Subscription subscription = subscriptions.remove(id);
+        if (subscription == null) {
+            return false;
+        }
+        Node<Subscription> node = patterns;
+        for (String segment : subscription.pattern) {
+            node = node.children.get(segment);
+        }
+        node.values.remove(subscription);
+        for (Map.Entry<EventDispatch<T>, Integer> entry : subscription.registrations.entrySet()) {
+            entry.getKey().removeObserver(entry.getValue());
+        }
+        return true;
+    }
+
+    @NotNull
+    private synchronized EventDispatch<T> createTopic(@NotNull String topic) {
+        EventDispatch<T> dispatch = dispatches.get(topic);
+        if (dispatch != null) {
+            return dispatch;
+        }
+        String[] segments = split(topic, false);
+        dispatch = new EventDispatch<>(topic, executor);
+        Node<EventDispatch<T>> node = topics;
+        for (String segment : segments) {
+            node = node.child(segment);
+        }
+        node.values.add(dispatch);
+
+        // in the order of subscription, like observers of a single dispatch
+        Set<Subscription> matched = new TreeSet<>();
+        collectSubscriptions(patterns, segments, 0, matched);
+        for (Subscription subscription : matched) {
+            subscription.attach(dispatch);
+        }
+        dispatches.put(topic, dispatch);
+        return dispatch;
+    }
+
+    /**
+     * Finds the topics under <code>node</code> that match <code>pattern[i..]</code>.
+     */
+    private void collectTopics(@NotNull Node<EventDispatch<T>> node, @NotNull String[] pattern, int i,
+                               @NotNull Set<EventDispatch<T>> out) {
+        if (i == pattern.length) {
+            out.addAll(node.values);
+            return;
+        }
+        String segment = pattern[i];
+        if (segment.equals(ANY)) {
+            // matches no more segments, or one more and maybe others
+            collectTopics(node, pattern, i + 1, out);
+            for (Node<EventDispatch<T>> child : node.children.values()) {
+                collectTopics(child, pattern, i, out);
+            }
+        } else if (segment.equals(ONE)) {
+            for (Node<EventDispatch<T>> child : node.children.values()) {
+                collectTopics(child, pattern, i + 1, out);
+            }
+        } else {
+            Node<EventDispatch<T>> child = node.children.get(segment);
+            if (child != null) {
+                collectTopics(child, pattern, i + 1, out);
+            }
+        }
+    }
+
+    /**
+     * Finds the subscriptions under <code>node</code> whose rest of the
+     * pattern matches <code>topic[i..]</code>.
+     */
+    private static <S> void collectSubscriptions(@NotNull Node<S> node, @NotNull String[] topic, int i,
+                                                 @NotNull Set<S> out) {
+        if (i == topic.length) {
+            out.addAll(node.values);
+        } else {
+            Node<S> child = node.children.get(topic[i]);
+            if (child != null) {
+                collectSubscriptions(child, topic, i + 1, out);
+            }
+            child = node.children.get(ONE);
+            if (child != null) {
+                collectSubscriptions(child, topic, i + 1, out);
+            }
+        }
+        Node<S> any = node.children.get(ANY);
+        if (any != null) {
+            for (int j = i; j <= topic.length; j++) {
+                collectSubscriptions(any, topic, j, out);
+            }
+        }
+    }
+
+    @NotNull
+    private static String[] split(@NotNull String name, boolean wildcards) {
+        String[] segments = name.split("\\.", -1);
+        for (String segment : segments) {
+            if (segment.isEmpty()) {
+                throw new IllegalArgumentException("empty segment in " + name);
+            }
+            if (!wildcards && (segment.equals(ONE) || segment.equals(ANY))) {
+                throw new IllegalArgumentException("wildcard in topic " + name);
+            }
+        }
+        return segments;
+    }
+
+}
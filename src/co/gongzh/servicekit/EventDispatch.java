@@ -4,10 +4,19 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * @author Gong Zhang
@@ -41,17 +50,332 @@ public final class EventDispatch<T> {
 
     }
 
+    public static final class SlowObserverInfo {
+
+        @NotNull public final EventDispatch<?> dispatch;
+        @NotNull public final EventObserver<?> observer;
+        public final long eventId;
+        public final long nanos;
+
+        SlowObserverInfo(@NotNull EventDispatch<?> dispatch, @NotNull EventObserver<?> observer,
+                         long eventId, long nanos) {
+            this.dispatch = dispatch;
+            this.observer = observer;
+            this.eventId = eventId;
+            this.nanos = nanos;
+        }
+
+    }
+
+    /**
+     * How an observer is notified, see {@link #addObserver(EventObserver, Delivery)}.
+     */
+    public enum Delivery {
+        /**
+         * On the thread that fires, before {@link #fire} returns.
+         */
+        SYNC,
+        /**
+         * On the executor of the dispatch, one event at a time and in the
+         * order they were fired.
+         */
+        ASYNC_ORDERED,
+        /**
+         * On the executor of the dispatch, each event as a separate task, so
+         * events may be notified concurrently and in any order.
+         */
+        ASYNC_UNORDERED
+    }
+
+    private static final int DRAIN_BATCH = 64;
+
+    /**
+     * Runs tasks on an executor one at a time and in the order they were
+     * offered. Every ASYNC_ORDERED observer has one; observers that share
+     * one are notified in order across their dispatches.
+     */
+    static final class SerialQueue implements Runnable {
+
+        @NotNull private final Executor executor;
+        @NotNull private final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+        @NotNull private final AtomicInteger pending = new AtomicInteger();
+
+        SerialQueue(@NotNull Executor executor) {
+            this.executor = executor;
+        }
+
+        void offer(@NotNull Runnable task) {
+            queue.offer(task);
+            if (pending.getAndIncrement() == 0) {
+                // no drain task is running
+                execute(executor, this);
+            }
+        }
+
+        /**
+         * Drains the queue. Hands the thread back to the executor after a
+         * batch, so a busy observer does not starve the others.
+         */
+        @Override
+        public void run() {
+            for (int i = 0; i < DRAIN_BATCH; i++) {
+                Runnable task = queue.poll();
+                assert task != null;
+                task.run();
+                if (pending.decrementAndGet() == 0) {
+                    return;
+                }
+            }
+            execute(executor, this);
+        }
+
+    }
+
+    /**
+     * The pending events of an observer that takes batches or belongs to a
+     * conflating dispatch. Guarded by itself.
+     */
+    private static final class Buffer<T> {
+
+        // the latest event per key, or null to keep every event
+        @Nullable private final LinkedHashMap<Object, Event<T>> latest;
+        @NotNull private ArrayList<Event<T>> events = new ArrayList<>();
+        private boolean draining;
+
+        Buffer(boolean conflating) {
+            this.latest = conflating ? new LinkedHashMap<>() : null;
+        }
+
+        /**
+         * @return {@code true} if the caller has to start draining.
+         */
+        synchronized boolean add(@Nullable Object key, @NotNull Event<T> event) {
+            if (latest != null) {
+                // an existing key keeps its position; concurrent fires may
+                // arrive out of order, so never replace a newer event
+                Event<T> existing = latest.get(key);
+                if (existing == null || existing.id < event.id) {
+                    latest.put(key, event);
+                }
+            } else {
+                events.add(event);
+            }
+            if (draining) {
+                return false;
+            }
+            draining = true;
+            return true;
+        }
+
+        /**
+         * @return the pending events, or {@code null} if there are none,
+         *         which ends draining.
+         */
+        @Nullable
+        synchronized List<Event<T>> take() {
+            List<Event<T>> taken;
+            if (latest != null) {
+                if (latest.isEmpty()) {
+                    draining = false;
+                    return null;
+                }
+                taken = new ArrayList<>(latest.values());
+                latest.clear();
+            } else {
+                if (events.isEmpty()) {
+                    draining = false;
+                    return null;
+                }
+                taken = events;
+                events = new ArrayList<>();
+            }
+            return taken;
+        }
+
+    }
+
+    private static final class Registration<T> {
+
+        final int id;
+        @NotNull final EventObserver<T> observer;
+        @NotNull final Delivery delivery;
+        @NotNull final Executor executor;
+        volatile boolean removed;
+
+        // the serial queue of an ASYNC_ORDERED observer
+        @Nullable final SerialQueue serial;
+
+        // instead of the queue, for batches and conflation
+        @Nullable final Buffer<T> buffer;
+        final boolean batch;
+        @NotNull final Runnable drainBuffer = this::drainBuffer;
+        @Nullable volatile EventDispatchMetrics.ObserverMetrics metrics;
+
+        Registration(int id, @NotNull EventObserver<T> observer, @NotNull Delivery delivery, boolean batch,
+                     @NotNull Executor executor, @Nullable Function<? super T, ?> conflationKey,
+                     @Nullable SerialQueue serial) {
+            this.id = id;
+            this.observer = observer;
+            this.delivery = delivery;
+            this.executor = executor;
+            this.batch = batch;
+            boolean buffered = delivery != Delivery.SYNC && (batch || conflationKey != null);
+            this.buffer = buffered ? new Buffer<>(conflationKey != null) : null;
+            boolean ordered = delivery == Delivery.ASYNC_ORDERED && !buffered;
+            this.serial = !ordered ? null : serial != null ? serial : new SerialQueue(executor);
+        }
+
+        /**
+         * @param key the conflation key of the event, if the dispatch conflates
+         */
+        void deliver(@NotNull Event<T> event, @Nullable Object key) {
+            if (buffer != null) {
+                if (buffer.add(key, event)) {
+                    execute(drainBuffer);
+                }
+                return;
+            }
+            switch (delivery) {
+                case SYNC:
+                    notify(event);
+                    break;
+                case ASYNC_ORDERED:
+                    assert serial != null;
+                    serial.offer(() -> notify(event));
+                    break;
+                case ASYNC_UNORDERED:
+                    execute(() -> notify(event));
+                    break;
+            }
+        }
+
+        /**
+         * Delivers what is pending in the buffer, then checks again in a new
+         * task, until the buffer is empty.
+         */
+        private void drainBuffer() {
+            assert buffer != null;
+            List<Event<T>> events = buffer.take();
+            if (events == null) {
+                return;
+            }
+            if (batch) {
+                notifyBatch(events);
+            } else {
+                for (Event<T> event : events) {
+                    notify(event);
+                }
+            }
+            execute(drainBuffer);
+        }
+
+        private void notify(@NotNull Event<T> event) {
+            if (removed && delivery != Delivery.SYNC) {
+                // queued before the observer was removed
+                return;
+            }
+            EventDispatchMetrics.ObserverMetrics metrics = this.metrics;
+            if (metrics == null) {
+                try {
+                    observer.notify(event);
+                } catch (Exception ex) {
+                    onException.fire(new ExceptionInfo(ex, observer));
+                }
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                observer.notify(event);
+            } catch (Exception ex) {
+                metrics.onException();
+                onException.fire(new ExceptionInfo(ex, observer));
+            }
+            metrics.onNotified(event, System.nanoTime() - start);
+        }
+
+        private void notifyBatch(@NotNull List<Event<T>> events) {
+            if (removed) {
+                return;
+            }
+            EventDispatchMetrics.ObserverMetrics metrics = this.metrics;
+            long start = metrics != null ? System.nanoTime() : 0;
+            try {
+                ((EventBatchObserver<T>) observer).notifyBatch(events);
+            } catch (Exception ex) {
+                if (metrics != null) {
+                    metrics.onException();
+                }
+                onException.fire(new ExceptionInfo(ex, observer));
+            }
+            if (metrics != null) {
+                metrics.onNotified(events.get(events.size() - 1), System.nanoTime() - start);
+            }
+        }
+
+        private void execute(@NotNull Runnable task) {
+            EventDispatch.execute(executor, task);
+        }
+
+    }
+
+    private static void execute(@NotNull Executor executor, @NotNull Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // the executor is shut down; deliver anyway
+            task.run();
+        }
+    }
+
+    private static final Registration<?>[] EMPTY = new Registration<?>[0];
+
     public static final EventDispatch<ExceptionInfo> onException = new EventDispatch<>("EventDispatch.onException");
 
-    private final LinkedHashMap<Integer, EventObserver<T>> observers;
+    /**
+     * Fired when an observer of a dispatch with metrics takes longer than
+     * {@link EventDispatchMetrics#setSlowObserverNanos its budget}.
+     */
+    public static final EventDispatch<SlowObserverInfo> onSlowObserver = new EventDispatch<>("EventDispatch.onSlowObserver");
+
+    // copy-on-write, in the order of registration
+    @NotNull private volatile Registration<?>[] observers = EMPTY;
     private int nextObserverId = 1;
-    private long currentEventId = 1;
+    @NotNull private final AtomicLong currentEventId = new AtomicLong(1);
     @NotNull
     private final String name;
+    @NotNull
+    private final Executor executor;
+    @Nullable
+    private final Function<? super T, ?> conflationKey;
+    @Nullable
+    private volatile EventDispatchMetrics metrics;
 
     public EventDispatch(@NotNull String name) {
-        this.observers = new LinkedHashMap<>();
+        this(name, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param executor runs the observers added with an asynchronous {@link Delivery}.
+     */
+    public EventDispatch(@NotNull String name, @NotNull Executor executor) {
+        this(name, executor, null);
+    }
+
+    /**
+     * Creates a conflating dispatch, for events that only matter by their
+     * latest value, e.g. state changes. An asynchronous observer keeps
+     * one pending event per key of <code>conflationKey</code>: a newer event
+     * of the same key replaces it, keeping its place in the order. Both
+     * asynchronous deliveries then notify one event at a time, in that
+     * order. Synchronous observers see every event.
+     * @param conflationKey extracts the key of a non-null argument; the
+     *                      events with a {@code null} argument share a key.
+     */
+    public EventDispatch(@NotNull String name, @NotNull Executor executor,
+                         @Nullable Function<? super T, ?> conflationKey) {
         this.name = name;
+        this.executor = executor;
+        this.conflationKey = conflationKey;
     }
 
     @NotNull
@@ -59,53 +383,161 @@ public final class EventDispatch<T> {
         return name;
     }
 
-    public synchronized int addObserver(@NotNull EventObserver<T> observer) {
+    public int addObserver(@NotNull EventObserver<T> observer) {
+        return addObserver(observer, Delivery.SYNC);
+    }
+
+    /**
+     * Adds an observer that is notified as <code>delivery</code> says.
+     * Exceptions of asynchronous observers are reported to
+     * {@link #onException} like those of synchronous ones. Once removed,
+     * an observer is not notified of events still queued for it.
+     */
+    public int addObserver(@NotNull EventObserver<T> observer, @NotNull Delivery delivery) {
+        return add(observer, delivery, false, null);
+    }
+
+    /**
+     * Adds an ASYNC_ORDERED observer that is notified through
+     * <code>serial</code>, so it is never notified concurrently with the
+     * other tasks of that queue.
+     */
+    int addObserver(@NotNull EventObserver<T> observer, @NotNull SerialQueue serial) {
+        return add(observer, Delivery.ASYNC_ORDERED, false, serial);
+    }
+
+    /**
+     * Adds an observer that is notified on the executor with all events
+     * fired since its last notification, in order, or on a conflating
+     * dispatch with the latest event of each key. The observer is never
+     * notified concurrently. Remove it with {@link #removeObserver}.
+     */
+    public int addBatchObserver(@NotNull EventBatchObserver<T> observer) {
+        return add(observer, Delivery.ASYNC_ORDERED, true, null);
+    }
+
+    private synchronized int add(@NotNull EventObserver<T> observer, @NotNull Delivery delivery, boolean batch,
+                                 @Nullable SerialQueue serial) {
         int id = nextObserverId++;
-        observers.put(id, observer);
+        Registration<?>[] current = observers;
+        Registration<?>[] updated = Arrays.copyOf(current, current.length + 1);
+        Registration<T> registration = new Registration<>(id, observer, delivery, batch, executor, conflationKey, serial);
+        EventDispatchMetrics metrics = this.metrics;
+        if (metrics != null) {
+            registration.metrics = new EventDispatchMetrics.ObserverMetrics(metrics, observer, delivery);
+        }
+        updated[current.length] = registration;
+        observers = updated;
         return id;
     }
 
     @Nullable
+    @SuppressWarnings("unchecked")
     public synchronized EventObserver<T> removeObserver(int id) {
-        return observers.remove(id);
+        Registration<?>[] current = observers;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].id == id) {
+                remove(current, i);
+                return (EventObserver<T>) current[i].observer;
+            }
+        }
+        return null;
     }
 
     public synchronized boolean removeObserver(@NotNull EventObserver<?> observer) {
-        Integer id = null;
-        for (Map.Entry<Integer, EventObserver<T>> entry : observers.entrySet()) {
-            if (entry.getValue() == observer) {
-                id = entry.getKey();
-                break;
+        Registration<?>[] current = observers;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].observer == observer) {
+                remove(current, i);
+                return true;
             }
         }
+        return false;
+    }
 
-        if (id != null) {
-            removeObserver(id);
-            return true;
-        } else {
-            return false;
+    private void remove(@NotNull Registration<?>[] current, int index) {
+        current[index].removed = true;
+        if (current.length == 1) {
+            observers = EMPTY;
+            return;
         }
+        Registration<?>[] updated = new Registration<?>[current.length - 1];
+        System.arraycopy(current, 0, updated, 0, index);
+        System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+        observers = updated;
     }
 
-    public synchronized void fire(@Nullable T arg, @Nullable Consumer<Long> eventIdHandler) {
+    /**
+     * Notifies the observers registered at the time of the call, in the
+     * order they were added. Synchronous observers run on the calling
+     * thread, the others are only handed their event. Takes no lock, so
+     * fires from several threads may run at the same time; observers added
+     * or removed meanwhile take effect for later fires.
+     */
+    @SuppressWarnings("unchecked")
+    public void fire(@Nullable T arg, @Nullable Consumer<Long> eventIdHandler) {
+        EventDispatchMetrics metrics = this.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
 
         // capture current states
-        final long eid = currentEventId++;
+        final long eid = currentEventId.getAndIncrement();
         Event<T> e = new Event<T>(this, arg, eid);
-        List<EventObserver<T>> copied = new ArrayList<>(observers.values());
-
+        Registration<?>[] observers = this.observers;
+        Object key = conflationKey != null && arg != null ? conflationKey.apply(arg) : null;
 
         if (eventIdHandler != null) {
             eventIdHandler.accept(eid);
         }
 
-        for (EventObserver<T> obs : copied) {
-            try {
-                obs.notify(e);
-            } catch (Exception ex) {
-                onException.fire(new ExceptionInfo(ex, obs));
+        for (Registration<?> registration : observers) {
+            ((Registration<T>) registration).deliver(e, key);
+        }
+        if (metrics != null) {
+            metrics.onFired(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Starts measuring fires and observers, see {@link EventDispatchMetrics}.
+     * Without metrics, a fire only reads one more volatile field.
+     * @return the metrics, which are kept if they were already enabled.
+     */
+    @NotNull
+    public synchronized EventDispatchMetrics enableMetrics() {
+        EventDispatchMetrics metrics = this.metrics;
+        if (metrics == null) {
+            metrics = new EventDispatchMetrics(this);
+            for (Registration<?> registration : observers) {
+                registration.metrics = new EventDispatchMetrics.ObserverMetrics(
+                        metrics, registration.observer, registration.delivery);
+            }
+            this.metrics = metrics;
+        }
+        return metrics;
+    }
+
+    public synchronized void disableMetrics() {
+        metrics = null;
+        for (Registration<?> registration : observers) {
+            registration.metrics = null;
+        }
+    }
+
+    @Nullable
+    public EventDispatchMetrics getMetrics() {
+        return metrics;
+    }
+
+    @NotNull
+    List<EventDispatchMetrics.ObserverMetrics> observerMetrics() {
+        List<EventDispatchMetrics.ObserverMetrics> list = new ArrayList<>();
+        for (Registration<?> registration : observers) {
+            EventDispatchMetrics.ObserverMetrics metrics = registration.metrics;
+            if (metrics != null) {
+                list.add(metrics);
             }
         }
+        return list;
     }
 
     public final void fire(T arg) {
@@ -113,10 +545,19 @@ public final class EventDispatch<T> {
     }
 
     public void observeOnce(@NotNull EventObserver<T> observer) {
-        final int[] obs = { 0 };
-        obs[0] = addObserver(event -> {
-            observer.notify(event);
-            this.removeObserver(obs[0]);
+        // fires may run concurrently, so make sure only one of them gets through
+        final AtomicBoolean notified = new AtomicBoolean();
+        addObserver(new EventObserver<T>() {
+            @Override
+            public void notify(@NotNull Event<T> event) {
+                if (notified.compareAndSet(false, true)) {
+                    try {
+                        observer.notify(event);
+                    } finally {
+                        removeObserver(this);
+                    }
+                }
+            }
         });
     }
 
@@ -0,0 +1,138 @@
+package co.gongzh.servicekit;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fire and observer timings of an {@link EventDispatch}, see
+ * {@link EventDispatch#enableMetrics()}. The fire latency is the time
+ * <code>fire</code> takes on the publishing thread, which for asynchronous
+ * observers only includes handing the event over. The latency of an
+ * observer is the time of its <code>notify</code> call, on whichever
+ * thread it runs.
+ *
+ * @author Gong Zhang
+ */
+public final class EventDispatchMetrics {
+
+    public static final class ObserverMetrics {
+
+        @NotNull private final EventDispatchMetrics owner;
+        @NotNull private final EventObserver<?> observer;
+        @NotNull private final EventDispatch.Delivery delivery;
+        @NotNull private final LatencyHistogram latency = new LatencyHistogram();
+        @NotNull private final LongAdder exceptions = new LongAdder();
+        @NotNull private final LongAdder slow = new LongAdder();
+
+        ObserverMetrics(@NotNull EventDispatchMetrics owner, @NotNull EventObserver<?> observer,
+                        @NotNull EventDispatch.Delivery delivery) {
+            this.owner = owner;
+            this.observer = observer;
+            this.delivery = delivery;
+        }
+
+        @NotNull
+        public EventObserver<?> getObserver() {
+            return observer;
+        }
+
+        @NotNull
+        public EventDispatch.Delivery getDelivery() {
+            return delivery;
+        }
+
+        @NotNull
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        public long getExceptionCount() {
+            return exceptions.sum();
+        }
+
+        /**
+         * @return the number of notifications that took longer than
+         *         {@link EventDispatchMetrics#getSlowObserverNanos()}.
+         */
+        public long getSlowCount() {
+            return slow.sum();
+        }
+
+        void onException() {
+            exceptions.increment();
+            owner.exceptions.increment();
+        }
+
+        void onNotified(@NotNull EventDispatch.Event<?> event, long nanos) {
+            latency.record(nanos);
+            long budget = owner.slowObserverNanos;
+            if (budget > 0 && nanos > budget) {
+                slow.increment();
+                if (owner.dispatch != EventDispatch.onSlowObserver) {
+                    EventDispatch.onSlowObserver.fire(
+                            new EventDispatch.SlowObserverInfo(owner.dispatch, observer, event.id, nanos));
+                }
+            }
+        }
+
+    }
+
+    @NotNull private final EventDispatch<?> dispatch;
+    @NotNull private final LatencyHistogram fireLatency = new LatencyHistogram();
+    @NotNull private final LongAdder exceptions = new LongAdder();
+    private volatile long slowObserverNanos;
+
+    EventDispatchMetrics(@NotNull EventDispatch<?> dispatch) {
+        this.dispatch = dispatch;
+    }
+
+    @NotNull
+    public String getDispatchName() {
+        return dispatch.getName();
+    }
+
+    public long getFireCount() {
+        return fireLatency.getCount();
+    }
+
+    @NotNull
+    public LatencyHistogram getFireLatency() {
+        return fireLatency;
+    }
+
+    /**
+     * @return exceptions thrown by observers, which are also reported to
+     *         {@link EventDispatch#onException}.
+     */
+    public long getExceptionCount() {
+        return exceptions.sum();
+    }
+
+    public long getSlowObserverNanos() {
+        return slowObserverNanos;
+    }
+
+    /**
+     * Reports every notification that takes longer than <code>nanos</code>
+     * to {@link EventDispatch#onSlowObserver}, on the thread of the
+     * observer. <code>0</code>, the default, turns this off.
+     */
+    public void setSlowObserverNanos(long nanos) {
+        this.slowObserverNanos = nanos;
+    }
+
+    /**
+     * @return the metrics of the current observers, in their order.
+     */
+    @NotNull
+    public List<ObserverMetrics> getObservers() {
+        return dispatch.observerMetrics();
+    }
+
+    void onFired(long nanos) {
+        fireLatency.record(nanos);
+    }
+
+}
@@ -0,0 +1,217 @@
+package co.gongzh.servicekit;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * A fixed ring of reusable, mutable events for paths that must not
+ * allocate, in the style of the LMAX Disruptor. Unlike {@link EventDispatch}
+ * nothing is created per event: a publisher claims the next sequence,
+ * fills the event in that slot and publishes the sequence; every
+ * {@link Reader} follows the published sequences at its own pace and
+ * handles them in batches.
+ * <pre>
+ * long seq = ring.next();
+ * ring.get(seq).price = price;
+ * ring.publish(seq);
+ * </pre>
+ * Any number of threads may publish. A publisher waits while the slot it
+ * claimed still holds an event that a reader has not handled, so a slow
+ * reader slows publishers down instead of losing events. With no readers
+ * old events are simply overwritten.
+ *
+ * @author Gong Zhang
+ */
+public final class EventRing<E> {
+
+    @FunctionalInterface
+    public interface Handler<E> {
+
+        /**
+         * @param event only valid until this method returns
+         * @param endOfBatch {@code true} for the last event currently available
+         */
+        void onEvent(@NotNull E event, long sequence, boolean endOfBatch);
+
+    }
+
+    /**
+     * Reads the events of the ring in sequence. A reader is used by one
+     * thread at a time.
+     */
+    public final class Reader {
+
+        // the last sequence handled
+        @NotNull private final AtomicLong sequence;
+
+        Reader(long sequence) {
+            this.sequence = new AtomicLong(sequence);
+        }
+
+        public long getSequence() {
+            return sequence.get();
+        }
+
+        /**
+         * Handles the events published since the last read, at most
+         * <code>max</code> of them, on the calling thread. Does not wait.
+         * If the handler throws, the event is still counted as handled
+         * and the exception is thrown to the caller.
+         * @return the number of events handled.
+         */
+        public int read(@NotNull Handler<? super E> handler, int max) {
+            long first = sequence.get() + 1;
+            long last = Math.min(claimed.get(), first + max - 1);
+            long available = first - 1;
+            while (available < last && isPublished(available + 1)) {
+                available++;
+            }
+            if (available < first) {
+                return 0;
+            }
+            long seq = first;
+            try {
+                for (; seq <= available; seq++) {
+                    handler.onEvent(get(seq), seq, seq == available);
+                }
+            } finally {
+                sequence.lazySet(Math.min(seq, available));
+            }
+            return (int) (available - first + 1);
+        }
+
+        /**
+         * @return {@code true} if an event is waiting to be read.
+         */
+        public boolean hasAvailable() {
+            long next = sequence.get() + 1;
+            return next <= claimed.get() && isPublished(next);
+        }
+
+    }
+
+    private static final long WAIT_NANOS = 1000L;
+
+    @NotNull private final Object[] events;
+    private final int mask;
+    private final int shift;
+    // the round of the sequence last published in each slot
+    @NotNull private final AtomicIntegerArray published;
+    @NotNull private final AtomicLong claimed = new AtomicLong(-1);
+    // the lowest reader sequence seen, so publishers rarely scan the readers
+    @NotNull private final AtomicLong gate = new AtomicLong(-1);
+    @SuppressWarnings("unchecked")
+    @NotNull private volatile Reader[] readers = (Reader[]) new EventRing<?>.Reader[0];
+
+    /**
+     * @param capacity a power of two
+     * @param factory creates the reusable events up front
+     */
+    public EventRing(int capacity, @NotNull Supplier<E> factory) {
+        if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two");
+        }
+        this.events = new Object[capacity];
+        for (int i = 0; i < capacity; i++) {
+            events[i] = factory.get();
+        }
+        this.mask = capacity - 1;
+        this.shift = Integer.numberOfTrailingZeros(capacity);
+        this.published = new AtomicIntegerArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            published.set(i, -1);
+        }
+    }
+
+    public int getCapacity() {
+        return events.length;
+    }
+
+    /**
+     * Claims the next sequence, waiting until its slot is free.
+     * The event must then be filled and {@link #publish(long) published}.
+     */
+    public long next() {
+        long seq = claimed.incrementAndGet();
+        long wrap = seq - events.length;
+        if (wrap > gate.get()) {
+            long min;
+            while (wrap > (min = minReaderSequence(seq - 1))) {
+                LockSupport.parkNanos(WAIT_NANOS);
+            }
+            gate.set(min);
+        }
+        return seq;
+    }
+
+    @NotNull
+    @SuppressWarnings("unchecked")
+    public E get(long sequence) {
+        return (E) events[(int) sequence & mask];
+    }
+
+    /**
+     * Makes the event of a claimed sequence visible to the readers.
+     */
+    public void publish(long sequence) {
+        published.lazySet((int) sequence & mask, (int) (sequence >>> shift));
+    }
+
+    /**
+     * Claims, fills and publishes an event. Pass a lambda that does not
+     * capture anything to avoid allocating.
+     */
+    public <A> void publish(@NotNull BiConsumer<? super E, A> translator, A arg) {
+        long seq = next();
+        try {
+            translator.accept(get(seq), arg);
+        } finally {
+            publish(seq);
+        }
+    }
+
+    /**
+     * Adds a reader that starts after the last claimed sequence.
+     */
+    @NotNull
+    public synchronized Reader addReader() {
+        Reader reader = new Reader(claimed.get());
+        Reader[] current = readers;
+        Reader[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = reader;
+        readers = updated;
+        return reader;
+    }
+
+    public synchronized boolean removeReader(@NotNull Reader reader) {
+        Reader[] current = readers;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == reader) {
+                Reader[] updated = Arrays.copyOf(current, current.length - 1);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                readers = updated;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isPublished(long sequence) {
+        return published.get((int) sequence & mask) == (int) (sequence >>> shift);
+    }
+
+    private long minReaderSequence(long max) {
+        long min = max;
+        for (Reader reader : readers) {
+            min = Math.min(min, reader.sequence.get());
+        }
+        return min;
+    }
+
+}
@@ -0,0 +1,187 @@
+package co.gongzh.servicekit;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Encodes log records as JSON lines, one object per record:
+ * <pre>
+ * {"time":"...","level":"i","tag":"...","message":"...","fields":{...},"exception":"..."}
+ * </pre>
+ * <code>fields</code> and <code>exception</code> are omitted if the record
+ * has none. The timestamp is formatted like the text format. Used by the
+ * writer thread only, so it is not thread safe.
+ *
+ * @author Gong Zhang
+ */
+final class JsonLogEncoder {
+
+    private static final byte[] TIME = bytes("{\"time\":\"");
+    private static final byte[] LEVEL = bytes("\",\"level\":\"");
+    private static final byte[] TAG = bytes("\",\"tag\":\"");
+    private static final byte[] MESSAGE = bytes("\",\"message\":");
+    private static final byte[] FIELDS = bytes(",\"fields\":{");
+    private static final byte[] EXCEPTION = bytes(",\"exception\":");
+    private static final byte[] NULL = bytes("null");
+    private static final byte[] TRUE = bytes("true");
+    private static final byte[] FALSE = bytes("false");
+    private static final byte[] HEX = bytes("0123456789abcdef");
+
+    @NotNull private final LogEncoder encoder;
+
+    JsonLogEncoder(@NotNull LogEncoder encoder) {
+        this.encoder = encoder;
+    }
+
+    void encodeRecord(long time, @NotNull DateTimeFormatter formatter, char level, @NotNull String tag,
+                      @Nullable String message, @Nullable LogFields fields, @Nullable String exception,
+                      @NotNull LogByteBuffer out) {
+        out.put(TIME);
+        encoder.encodeTimestamp(time, formatter, out);
+        out.put(LEVEL);
+        putByte(out, level);
+        out.put(TAG);
+        putEscaped(tag, out);
+        out.put(MESSAGE);
+        putString(message, out);
+        if (fields != null && fields.size > 0) {
+            out.put(FIELDS);
+            for (int i = 0; i < fields.size; i++) {
+                if (i > 0) {
+                    putByte(out, ',');
+                }
+                putString(fields.keys[i], out);
+                putByte(out, ':');
+                putValue(fields, i, out);
+            }
+            putByte(out, '}');
+        }
+        if (exception != null) {
+            out.put(EXCEPTION);
+            putString(exception, out);
+        }
+        putByte(out, '}');
+        putByte(out, '\n');
+    }
+
+    private static void putValue(@NotNull LogFields fields, int index, @NotNull LogByteBuffer out) {
+        long value = fields.values[index];
+        switch (fields.kinds[index]) {
+            case LogFields.LONG:
+                putLong(value, out);
+                break;
+            case LogFields.DOUBLE: {
+                double d = Double.longBitsToDouble(value);
+                if (Double.isNaN(d) || Double.isInfinite(d)) {
+                    putString(Double.toString(d), out);
+                } else {
+                    out.put(bytes(Double.toString(d)));
+                }
+                break;
+            }
+            case LogFields.BOOLEAN:
+                out.put(value != 0 ? TRUE : FALSE);
+                break;
+            case LogFields.CHAR:
+                putString(String.valueOf((char) value), out);
+                break;
+            default: {
+                Object object = fields.objects[index];
+                if (object == null) {
+                    out.put(NULL);
+                } else if (object instanceof Boolean) {
+                    out.put((Boolean) object ? TRUE : FALSE);
+                } else if (object instanceof Integer || object instanceof Long ||
+                        object instanceof Short || object instanceof Byte) {
+                    putLong(((Number) object).longValue(), out);
+                } else {
+                    putString(String.valueOf(object), out);
+                }
+                break;
+            }
+        }
+    }
+
+    private static void putString(@Nullable String s, @NotNull LogByteBuffer out) {
+        if (s == null) {
+            out.put(NULL);
+            return;
+        }
+        putByte(out, '"');
+        putEscaped(s, out);
+        putByte(out, '"');
+    }
+
+    /**
+     * Writes <code>s</code> as the content of a JSON string.
+     */
+    private static void putEscaped(@NotNull String s, @NotNull LogByteBuffer out) {
+        int length = s.length();
+        int from = 0;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') {
+                continue;
+            }
+            LogEncoder.putUTF8(s, from, i, out);
+            from = i + 1;
+            out.ensure(6);
+            byte[] a = out.array;
+            int n = out.length;
+            a[n++] = '\\';
+            switch (c) {
+                case '"': a[n++] = '"'; break;
+                case '\\': a[n++] = '\\'; break;
+                case '\n': a[n++] = 'n'; break;
+                case '\r': a[n++] = 'r'; break;
+                case '\t': a[n++] = 't'; break;
+                default:
+                    a[n++] = 'u';
+                    a[n++] = '0';
+                    a[n++] = '0';
+                    a[n++] = HEX[c >> 4];
+                    a[n++] = HEX[c & 0xF];
+                    break;
+            }
+            out.length = n;
+        }
+        LogEncoder.putUTF8(s, from, length, out);
+    }
+
+    private static void putLong(long value, @NotNull LogByteBuffer out) {
+        if (value == Long.MIN_VALUE) {
+            out.put(bytes(Long.toString(value)));
+            return;
+        }
+        out.ensure(20);
+        byte[] a = out.array;
+        if (value < 0) {
+            a[out.length++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        int n = out.length + digits;
+        out.length = n;
+        do {
+            a[--n] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+    }
+
+    private static void putByte(@NotNull LogByteBuffer out, int b) {
+        out.ensure(1);
+        out.array[out.length++] = (byte) b;
+    }
+
+    @NotNull
+    private static byte[] bytes(@NotNull String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+}
@@ -4,8 +4,8 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
-import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.time.OffsetDateTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
@@ -13,33 +13,65 @@ import java.time.format.DateTimeFormatterBuilder;
 import java.time.temporal.ChronoField;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
 
 /**
  * @author Gong Zhang
  */
 public final class Log {
 
-    private static Log shared = null;
+    private static volatile Log shared = null;
     private static LogFileResolver logFileResolver = null;
+    private static volatile boolean resolverHooksLog = false;
     private static EventDispatch<File> onLogFileChange = null;
     private static Filter filter = null;
+    @NotNull private static LogConfig sharedConfig = new LogConfig();
 
-    private static final String ANSI_RED = "\033[0;31;1m";
-    private static final String ANSI_YELLOW = "\033[0;33;1m";
-    private static final String ANSI_GREEN = "\033[0;32;1m";
-    private static final String ANSI_NC = "\033[0m";
+    private static final char[] LEVELS = { 'i', 'w', 'e' };
+    private static volatile int minLevel = 0;
+    @NotNull private static final LogRateLimiter sharedRateLimiter = new LogRateLimiter();
+    @NotNull private static volatile Map<String, Integer> tagLevels = Collections.emptyMap();
+
+    private static final long WRITER_PARK_NANOS = 100_000_000L;
+    private static final int MAX_BATCH_BYTES = 1 << 20;
+    private static final long BLOCKED_PARK_NANOS = 100_000L;
+    private static final long RATE_LIMIT_REPORT_MILLIS = 10_000L;
+    private static final int DEFAULT_RING_CAPACITY = 8192;
+    private static final String TAG = "Log";
+
+    /**
+     * How log records are handed over to the writer thread.
+     */
+    public enum Mode {
+        /**
+         * Every record is submitted as a task to a single thread executor.
+         */
+        EXECUTOR,
+        /**
+         * Records are put into a pre-allocated ring buffer without taking
+         * any lock and drained by a dedicated writer thread.
+         */
+        RING_BUFFER
+    }
 
     @FunctionalInterface
     public interface Filter {
         boolean accept(@NotNull OffsetDateTime time, char level, @NotNull String tag, @NotNull String message);
     }
 
-    @NotNull
-    private static DateTimeFormatter dateTimeFormatter = new DateTimeFormatterBuilder()
+    static final DateTimeFormatter DEFAULT_DATE_TIME_FORMATTER = new DateTimeFormatterBuilder()
             .parseCaseInsensitive()
             .append(DateTimeFormatter.ISO_LOCAL_DATE)
             .appendLiteral('T')
@@ -53,6 +85,9 @@ public final class Log {
             .appendOffsetId()
             .toFormatter(Locale.US);
 
+    @NotNull
+    private static volatile DateTimeFormatter dateTimeFormatter = DEFAULT_DATE_TIME_FORMATTER;
+
     @NotNull
     public static DateTimeFormatter getDateTimeFormatter() {
         return dateTimeFormatter;
@@ -71,11 +106,146 @@ public final class Log {
         Log.filter = filter;
     }
 
+    /**
+     * Returns the global minimum level. Records below it are discarded on the
+     * calling thread, before the message is built or handed to the writer.
+     * @return <code>'i'</code>, <code>'w'</code> or <code>'e'</code>
+     */
+    public static char getLevel() {
+        return LEVELS[minLevel];
+    }
+
+    public static void setLevel(char level) {
+        Log.minLevel = levelRank(level);
+    }
+
+    /**
+     * Sets the minimum level of a tag, which overrides the global level.
+     */
+    public static synchronized void setLevel(@NotNull String tag, char level) {
+        Map<String, Integer> levels = new HashMap<>(tagLevels);
+        levels.put(tag, levelRank(level));
+        tagLevels = levels;
+    }
+
+    /**
+     * Removes the minimum level of a tag, so the global level applies again.
+     */
+    public static synchronized void removeLevel(@NotNull String tag) {
+        if (tagLevels.containsKey(tag)) {
+            Map<String, Integer> levels = new HashMap<>(tagLevels);
+            levels.remove(tag);
+            tagLevels = levels.isEmpty() ? Collections.emptyMap() : levels;
+        }
+    }
+
+    /**
+     * Checks the global and per-tag minimum levels.
+     * @return {@code true} if a record of <code>level</code> with <code>tag</code> would be logged.
+     */
+    public static boolean isLoggable(@NotNull String tag, char level) {
+        int rank = levelRank(level);
+        Map<String, Integer> levels = tagLevels;
+        if (!levels.isEmpty()) {
+            Integer min = levels.get(tag);
+            if (min != null) {
+                return rank >= min;
+            }
+        }
+        return rank >= minLevel;
+    }
+
+    /**
+     * Sets a rate limit of the shared log, see {@link #setRateLimit(String, char, double, int)}.
+     * Kept across restarts of the shared log.
+     */
+    public static void setSharedRateLimit(@NotNull String tag, char level, double permitsPerSecond, int burst) {
+        sharedRateLimiter.setLimit(tag, level, permitsPerSecond, burst);
+    }
+
+    public static void removeSharedRateLimit(@NotNull String tag, char level) {
+        sharedRateLimiter.removeLimit(tag, level);
+    }
+
+    public static double getSharedInfoSampleRate() {
+        return sharedRateLimiter.getInfoSampleRate();
+    }
+
+    /**
+     * Sets the info sample rate of the shared log, see {@link #setInfoSampleRate(double)}.
+     */
+    public static void setSharedInfoSampleRate(double rate) {
+        sharedRateLimiter.setInfoSampleRate(rate);
+    }
+
+    private static boolean shouldLogShared(@NotNull String tag, char level) {
+        return isLoggable(tag, level) && sharedRateLimiter.admit(tag, level);
+    }
+
+    static int levelRank(char level) {
+        switch (level) {
+            case 'i': return 0;
+            case 'w': return 1;
+            case 'e': return 2;
+            default: throw new IllegalArgumentException("unknown log level: " + level);
+        }
+    }
+
+    /**
+     * @return records dropped by the shared log since it opened its log file.
+     */
+    public static long getSharedDroppedCount() {
+        Log log = shared;
+        return log != null ? log.getDroppedCount() : 0;
+    }
+
+    /**
+     * @return records of the shared log that had to wait for room in the queue.
+     */
+    public static long getSharedBlockedCount() {
+        Log log = shared;
+        return log != null ? log.getBlockedCount() : 0;
+    }
+
+    /**
+     * @return lines of the shared log that the console could not keep up with.
+     */
+    public static long getSharedConsoleDroppedCount() {
+        Log log = shared;
+        return log != null ? log.getConsoleDroppedCount() : 0;
+    }
+
+    /**
+     * @return the record counts of the shared log, or {@code null} if it is not running.
+     */
+    @Nullable
+    public static LogStats getSharedStats() {
+        Log log = shared;
+        return log != null ? log.getStats() : null;
+    }
+
+    /**
+     * Returns a copy of the config used by the shared log.
+     */
+    @NotNull
+    public static synchronized LogConfig getConfig() {
+        return new LogConfig(sharedConfig);
+    }
+
+    /**
+     * Sets the config used by the shared log. It takes effect
+     * the next time the shared log opens a log file.
+     */
+    public static synchronized void setConfig(@NotNull LogConfig config) {
+        Log.sharedConfig = new LogConfig(config);
+    }
+
     static synchronized boolean startupShared(@NotNull LogFileResolver resolver) {
         // shutdown
         shutdownShared();
 
         logFileResolver = resolver;
+        resolverHooksLog = resolver.usesOnLog();
         onLogFileChange = new EventDispatch<>("Log.onLogFileChange");
         onLogFileChange.addObserver(e -> {
             File file = e.arg;
@@ -87,7 +257,8 @@ public final class Log {
 
         logFileResolver.onCreate(onLogFileChange);
 
-        shared = new Log(logFileResolver.getCurrentLogFile(), logFileResolver.getLogZoneId());
+        shared = new Log(logFileResolver.getCurrentLogFile(), logFileResolver.getLogZoneId(),
+                logFileResolver, sharedConfig, sharedRateLimiter);
         try {
             shared.startup();
             return true;
@@ -110,109 +281,215 @@ public final class Log {
     }
 
     private static synchronized void switchSharedLogFile(@NotNull File newFile) {
-        if (shared != null && logFileResolver != null &&
-                !shared.getLogFile().equals(newFile)) {
-            shared.shutdown();
-            shared = new Log(newFile, logFileResolver.getLogZoneId());
-            try {
-                shared.startup();
-            } catch (IOException e) {
-                System.err.println("failed to start up log: " + e);
-                shared = null;
-                logFileResolver = null;
-                onLogFileChange = null;
-            }
+        if (shared != null && logFileResolver != null) {
+            shared.switchLogFile(newFile);
         }
     }
 
     @Nullable
-    private static synchronized Log determineLogIns() {
-        if (shared != null && logFileResolver != null) {
-            logFileResolver.onLog(); // may cause switching log file!
+    private static Log determineLogIns() {
+        if (!resolverHooksLog) {
+            // the resolver never switches log file from onLog(), no need to lock
             return shared;
-        } else {
-            return null;
         }
+        synchronized (Log.class) {
+            if (shared != null && logFileResolver != null) {
+                logFileResolver.onLog(); // may cause switching log file!
+                return shared;
+            } else {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Starts a structured info record of the shared log, see {@link LogEntry}.
+     */
+    @NotNull
+    public static LogEntry i(@NotNull String tag) {
+        return shouldLogShared(tag, 'i') ? LogEntry.obtain(null, 'i', tag) : LogEntry.DISABLED;
     }
 
     public static void i(@NotNull String tag, @NotNull String message) {
-        Log log = determineLogIns();
-        if (log != null) {
-            log.info(tag, message);
+        logShared('i', tag, message, null);
+    }
+
+    public static void i(@NotNull String tag, @NotNull Supplier<String> message) {
+        if (shouldLogShared(tag, 'i')) {
+            Log log = determineLogIns();
+            if (log != null) {
+                log.append('i', tag, message.get(), null);
+            }
         }
     }
 
     public static void i(@NotNull String tag, @NotNull Exception ex) {
-        Log log = determineLogIns();
-        if (log != null) {
-            log.info(tag, ex);
-        }
+        logShared('i', tag, null, ex);
     }
 
     public static void i(@NotNull String tag, @Nullable String message, @NotNull Exception ex) {
-        Log log = determineLogIns();
-        if (log != null) {
-            log.info(tag, message, ex);
-        }
+        logShared('i', tag, message, ex);
+    }
+
+    @NotNull
+    public static LogEntry w(@NotNull String tag) {
+        return shouldLogShared(tag, 'w') ? LogEntry.obtain(null, 'w', tag) : LogEntry.DISABLED;
     }
 
     public static void w(@NotNull String tag, @NotNull String message) {
-        Log log = determineLogIns();
-        if (log != null) {
-            log.warning(tag, message);
+        logShared('w', tag, message, null);
+    }
+
+    public static void w(@NotNull String tag, @NotNull Supplier<String> message) {
+        if (shouldLogShared(tag, 'w')) {
+            Log log = determineLogIns();
+            if (log != null) {
+                log.append('w', tag, message.get(), null);
+            }
         }
     }
 
     public static void w(@NotNull String tag, @NotNull Exception ex) {
-        Log log = determineLogIns();
-        if (log != null) {
-            log.warning(tag, ex);
-        }
+        logShared('w', tag, null, ex);
     }
 
     public static void w(@NotNull String tag, @Nullable String message, @NotNull Exception ex) {
-        Log log = determineLogIns();
-        if (log != null) {
-            log.warning(tag, message, ex);
-        }
+        logShared('w', tag, message, ex);
+    }
+
+    @NotNull
+    public static LogEntry e(@NotNull String tag) {
+        return shouldLogShared(tag, 'e') ? LogEntry.obtain(null, 'e', tag) : LogEntry.DISABLED;
     }
 
     public static void e(@NotNull String tag, @NotNull String message) {
-        Log log = determineLogIns();
-        if (log != null) {
-            log.error(tag, message);
+        logShared('e', tag, message, null);
+    }
+
+    public static void e(@NotNull String tag, @NotNull Supplier<String> message) {
+        if (shouldLogShared(tag, 'e')) {
+            Log log = determineLogIns();
+            if (log != null) {
+                log.append('e', tag, message.get(), null);
+            }
         }
     }
 
     public static void e(@NotNull String tag, @NotNull Exception ex) {
-        Log log = determineLogIns();
-        if (log != null) {
-            log.error(tag, ex);
-        }
+        logShared('e', tag, null, ex);
     }
 
     public static void e(@NotNull String tag, @Nullable String message, @NotNull Exception ex) {
-        Log log = determineLogIns();
+        logShared('e', tag, message, ex);
+    }
+
+    private static void logShared(char level, @NotNull String tag, @Nullable String message, @Nullable Exception ex) {
+        if (shouldLogShared(tag, level)) {
+            Log log = determineLogIns();
+            if (log != null) {
+                log.append(level, tag, message, ex);
+            }
+        }
+    }
+
+    /**
+     * Called by {@link LogEntry#log}. The fields are copied before it returns.
+     * @param log the target, or {@code null} for the shared log
+     */
+    static void appendEntry(@Nullable Log log, char level, @NotNull String tag, @NotNull String template,
+                            @NotNull LogFields fields, @Nullable Exception ex) {
+        if (log == null) {
+            log = determineLogIns();
+        }
         if (log != null) {
-            log.error(tag, message, ex);
+            log.enqueue(level, tag, template, fields, ex);
         }
     }
 
-    @NotNull private final File logFile;
+    @NotNull private volatile File logFile;
+    @NotNull private final AtomicReference<File> pendingLogFile = new AtomicReference<>();
+    @Nullable private final LogFileResolver resolver;
     private boolean opened;
-    @Nullable private FileOutputStream writer;
-    @Nullable private ExecutorService executor;
+    @Nullable private LogAppender appender;
+    @Nullable private ScheduledExecutorService executor;
 
     @NotNull private final ZoneId zoneId;
-    @NotNull private final Charset charset;
+    @NotNull private final LogEncoder encoder;
+    @Nullable private final BinaryLogEncoder binaryEncoder;
+    @Nullable private final JsonLogEncoder jsonEncoder;
+    @Nullable private final LogIndex index;
+    @NotNull private final StringBuilder fieldText;
+    @Nullable private final LogByteBuffer consoleBuffer;
+    @NotNull private final LogConfig config;
 
     @NotNull private final List<Runnable> tasks;
+    @NotNull private final AtomicInteger pending;
+
+    @NotNull private final LongAdder dropped;
+    @NotNull private final LongAdder blocked;
+    @NotNull private final LogStats stats;
+    @NotNull private final LogRateLimiter rateLimiter;
+    @NotNull private final LongAdder consoleDropped;
+    private long reportedDrops;
+    private long reportedConsoleDrops;
+    private long lastRateLimitReport;
+
+    @NotNull private final LogExceptionCache exceptions;
+    @NotNull private final LogExceptionCache.RepeatHandler repeatHandler;
+    @NotNull private final LogRateLimiter.SummaryHandler summaryHandler;
+
+    @NotNull private final LogByteBuffer batch;
+    private boolean batchHasError;
+    private long lastFlushTime;
+
+    @Nullable private LogConsole console;
+
+    @Nullable private volatile LogRingBuffer ring;
+    @Nullable private volatile Thread writerThread;
+    private volatile boolean writerRunning;
+    private volatile boolean writerParked;
 
     public Log(@NotNull File logFile, @NotNull ZoneId zoneId) {
+        this(logFile, zoneId, new LogConfig());
+    }
+
+    public Log(@NotNull File logFile, @NotNull ZoneId zoneId, @NotNull LogConfig config) {
+        this(logFile, zoneId, null, config, new LogRateLimiter());
+    }
+
+    /**
+     * Creates a log that writes to the current file of <code>resolver</code>
+     * and lets the resolver rotate it, see {@link LogFileResolver#shouldRotate}.
+     */
+    public Log(@NotNull LogFileResolver resolver, @NotNull LogConfig config) {
+        this(resolver.getCurrentLogFile(), resolver.getLogZoneId(), resolver, config, new LogRateLimiter());
+    }
+
+    private Log(@NotNull File logFile, @NotNull ZoneId zoneId, @Nullable LogFileResolver resolver,
+                @NotNull LogConfig config, @NotNull LogRateLimiter rateLimiter) {
         this.logFile = logFile;
+        this.resolver = resolver;
         this.zoneId = zoneId;
-        this.charset = StandardCharsets.UTF_8;
+        this.encoder = new LogEncoder(zoneId);
+        this.config = new LogConfig(config);
+        LogConfig.Format format = config.getFormat();
+        this.binaryEncoder = format == LogConfig.Format.BINARY ? new BinaryLogEncoder(zoneId) : null;
+        this.jsonEncoder = format == LogConfig.Format.JSON ? new JsonLogEncoder(encoder) : null;
+        this.consoleBuffer = format != LogConfig.Format.TEXT ? new LogByteBuffer(1024) : null;
+        this.fieldText = new StringBuilder();
+        boolean indexed = format == LogConfig.Format.TEXT && (config.getIndexRecords() > 0 || config.getIndexBytes() > 0);
+        this.index = indexed ? new LogIndex(config.getIndexRecords(), config.getIndexBytes()) : null;
         this.tasks = Collections.synchronizedList(new ArrayList<>());
+        this.pending = new AtomicInteger();
+        this.dropped = new LongAdder();
+        this.blocked = new LongAdder();
+        this.consoleDropped = new LongAdder();
+        this.stats = new LogStats();
+        this.rateLimiter = rateLimiter;
+        this.batch = new LogByteBuffer(8192);
+        this.exceptions = new LogExceptionCache();
+        this.repeatHandler = this::writeLines;
+        this.summaryHandler = message -> writeLines(System.currentTimeMillis(), 'w', TAG, message);
     }
 
     @NotNull
@@ -220,6 +497,20 @@ public final class Log {
         return logFile;
     }
 
+    /**
+     * Asks the writer to continue in <code>newFile</code>. The switch happens
+     * on the writer thread right before the next batch is written, so callers
+     * never wait for it and no queued record is lost.
+     */
+    public void switchLogFile(@NotNull File newFile) {
+        pendingLogFile.set(newFile);
+    }
+
+    @NotNull
+    public Mode getMode() {
+        return config.getMode();
+    }
+
     public synchronized boolean isOpened() {
         return opened;
     }
@@ -228,86 +519,202 @@ public final class Log {
         if (opened) {
             throw new IllegalStateException("the log file is already opened");
         }
-        executor = Executors.newSingleThreadExecutor();
         try {
-            writer = new FileOutputStream(logFile, true);
-            opened = true;
+            appender = LogAppender.open(logFile, config);
         } catch (IOException e) {
-            writer = null;
+            appender = null;
             throw e;
         }
+        if (binaryEncoder != null) {
+            binaryEncoder.reset();
+        }
+        if (index != null) {
+            index.open(logFile, appender.size());
+        }
+        lastRateLimitReport = System.currentTimeMillis();
+        if (config.isConsoleEnabled()) {
+            console = new LogConsole(config.getConsoleLevel(), consoleDropped);
+            console.startup();
+        }
+        if (config.getMode() == Mode.RING_BUFFER) {
+            int capacity = config.getQueueCapacity();
+            ring = new LogRingBuffer(capacity > 0 ? capacity : DEFAULT_RING_CAPACITY);
+            writerRunning = true;
+            Thread thread = new Thread(this::runWriter, "Log.writer");
+            thread.setDaemon(true);
+            writerThread = thread;
+            thread.start();
+        } else {
+            executor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = Executors.defaultThreadFactory().newThread(r);
+                writerThread = thread;
+                return thread;
+            });
+            long interval = config.getFlushPolicy().getIntervalMillis();
+            long window = config.getRepeatWindowMillis();
+            if (interval > 0 || window > 0) {
+                long period = interval > 0 && window > 0 ? Math.min(interval, window) : Math.max(interval, window);
+                executor.scheduleWithFixedDelay(() -> {
+                    synchronized (Log.this) {
+                        writeSummaries(false);
+                        endBatch();
+                    }
+                }, period, period, TimeUnit.MILLISECONDS);
+            }
+        }
+        lastFlushTime = System.currentTimeMillis();
+        opened = true;
     }
 
     public synchronized void shutdown() {
         if (!opened) {
             return;
         }
-        assert executor != null;
-        executor.shutdown();
-        executor = null;
-        for (Runnable t : tasks.toArray(new Runnable[0])) {
-            t.run();
+        if (config.getMode() == Mode.RING_BUFFER) {
+            Thread thread = writerThread;
+            LogRingBuffer ring = this.ring;
+            assert thread != null && ring != null;
+            ring.close();
+            writerRunning = false;
+            LockSupport.unpark(thread);
+            boolean interrupted = false;
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            writerThread = null;
+            this.ring = null;
+        } else {
+            assert executor != null;
+            executor.shutdown();
+            executor = null;
+            writerThread = null;
+            for (Runnable t : tasks.toArray(new Runnable[0])) {
+                t.run();
+            }
+            assert tasks.isEmpty();
+            writeSummaries(true);
+            flushBatch();
         }
-        assert tasks.isEmpty();
-        try {
-            assert writer != null;
-            writer.flush();
-        } catch (IOException ignored) {
-        } finally {
+        if (appender != null) {
+            closeAppender();
+        }
+        if (console != null) {
+            console.shutdown();
+            console = null;
+        }
+        if (resolver != null) {
             try {
-                assert writer != null;
-                writer.close();
-            } catch (IOException ignored) {
+                resolver.close();
+            } catch (Exception ex) {
+                System.err.println("failed to close log file resolver: " + ex);
             }
         }
-        writer = null;
 
         opened = false;
     }
 
-    private void atomWriteLines(char level, @NotNull String tag, @Nullable String lines) {
-        if (lines == null || lines.isEmpty()) {
+    /**
+     * Hands a record over to the writer. The stack trace of <code>ex</code>
+     * is rendered by the writer, not by the caller.
+     */
+    private void enqueue(char level, @NotNull String tag, @Nullable String message, @Nullable Exception ex) {
+        enqueue(level, tag, message, null, ex);
+    }
+
+    /**
+     * @param fields the fields of a {@link LogEntry}, which <code>message</code>
+     *               is the template of; copied before this method returns
+     */
+    private void enqueue(char level, @NotNull String tag, @Nullable String message,
+                         @Nullable LogFields fields, @Nullable Exception ex) {
+        final long time = System.currentTimeMillis();
+        if (config.getMode() == Mode.RING_BUFFER) {
+            LogRingBuffer ring = this.ring;
+            if (ring != null) {
+                LogRingBuffer.Slot slot;
+                boolean waited = false;
+                while (!hasRoom(level, ring.size(), ring.capacity()) || (slot = ring.claim()) == null) {
+                    if (ring.isClosed() || !waitForRoom(level, waited)) {
+                        return;
+                    }
+                    waited = true;
+                }
+                if (ring.isClosed()) {
+                    // raced with shutdown(), the writer may be gone already
+                    ring.publish(slot);
+                    dropped.increment();
+                    return;
+                }
+                slot.time = time;
+                slot.level = level;
+                slot.tag = tag;
+                slot.message = message;
+                slot.exception = ex;
+                if (fields != null) {
+                    if (slot.fields == null) {
+                        slot.fields = new LogFields();
+                    }
+                    slot.fields.copyFrom(fields);
+                    slot.hasFields = true;
+                }
+                ring.publish(slot);
+                if (writerParked) {
+                    LockSupport.unpark(writerThread);
+                }
+            } else {
+                // already shutdown, ignore the log
+            }
             return;
         }
         ExecutorService executor = this.executor;
         if (executor != null) {
+            int capacity = config.getQueueCapacity();
+            if (capacity == 0) {
+                // unbounded unless a capacity is set
+                pending.incrementAndGet();
+            } else {
+                boolean waited = false;
+                while (true) {
+                    int queued = pending.get();
+                    if (hasRoom(level, queued, capacity)) {
+                        if (pending.compareAndSet(queued, queued + 1)) {
+                            break;
+                        }
+                    } else if (this.executor == null || !waitForRoom(level, waited)) {
+                        return;
+                    } else {
+                        waited = true;
+                    }
+                }
+            }
+            final LogFields copy = fields != null ? fields.copy() : null;
             final Runnable task = new Runnable() {
                 @Override
                 public void run() {
                     synchronized (Log.this) {
-                        if (writer != null) {
-
-                            // generate timestamp
-                            OffsetDateTime dateTime = OffsetDateTime.now(zoneId);
-                            String time = dateTime.format(dateTimeFormatter);
-
-                            try {
-                                for (String line : lines.split("\n")) {
-                                    if (line.isEmpty()) continue;
-
-                                    if (filter != null) {
-                                        if (!filter.accept(dateTime, level, tag, line)) {
-                                            continue;
-                                        }
-                                    }
-
-                                    // NOTE: Do not change format. See LogParser.
-                                    String plain = String.format(Locale.US, "%s  %c  %s \t%s\n", time, level, tag, line);
-                                    String ansiColor = level == 'i' ? ANSI_GREEN : (level == 'w' ? ANSI_YELLOW : ANSI_RED);
-                                    String colorful = String.format(Locale.US, "%s  %s%c%s  %s \t%s\n", time, ansiColor, level, ANSI_NC, tag, line);
-                                    if (level == 'e') {
-                                        System.err.print(colorful);
-                                    } else {
-                                        System.out.print(colorful);
-                                    }
-                                    writer.write(plain.getBytes(charset));
-                                }
-                                writer.flush();
-                            } catch (IOException ignored) {
-                            }
-
+                        if (!tasks.contains(this)) {
+                            // already run by shutdown()
+                            return;
                         }
+                        writeRecord(time, level, tag, message, copy, ex);
                         tasks.remove(this);
+                        if (pending.decrementAndGet() == 0) {
+                            // nothing pending, the batch is complete
+                            writeSummaries(false);
+                            endBatch();
+                        } else {
+                            if (batch.length >= getBatchLimit()) {
+                                flushBatch();
+                            }
+                            writeSummariesIfDue();
+                        }
                     }
                 }
             };
@@ -318,56 +725,564 @@ public final class Log {
         }
     }
 
+    private boolean hasRoom(char level, int queued, int capacity) {
+        if (config.getOverflowPolicy() == LogConfig.OverflowPolicy.DROP_LOWEST_LEVEL) {
+            switch (level) {
+                case 'i': return queued < capacity / 2;
+                case 'w': return queued < capacity - capacity / 4;
+            }
+        }
+        return queued < capacity;
+    }
+
+    /**
+     * Called when the queue has no room for a record of <code>level</code>.
+     * @param waited whether the caller already waited for this record
+     * @return {@code true} if the caller should try again, or {@code false}
+     *         if the record is dropped.
+     */
+    private boolean waitForRoom(char level, boolean waited) {
+        LogConfig.OverflowPolicy policy = config.getOverflowPolicy();
+        if (Thread.currentThread() == writerThread) {
+            // the writer would wait for itself
+            dropped.increment();
+            return false;
+        }
+        if (policy == LogConfig.OverflowPolicy.DROP_NEWEST ||
+                (policy == LogConfig.OverflowPolicy.DROP_LOWEST_LEVEL && level != 'e')) {
+            dropped.increment();
+            return false;
+        }
+        if (!waited) {
+            blocked.increment();
+        }
+        LockSupport.parkNanos(this, BLOCKED_PARK_NANOS);
+        return true;
+    }
+
+    /**
+     * Number of records dropped because the queue was full.
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Number of records whose caller had to wait because the queue was full.
+     */
+    public long getBlockedCount() {
+        return blocked.sum();
+    }
+
+    /**
+     * Number of lines not echoed to the console because it could not keep up.
+     * The lines are still written to the log file.
+     */
+    public long getConsoleDroppedCount() {
+        return consoleDropped.sum();
+    }
+
+    /**
+     * Limits records of <code>tag</code> and <code>level</code> to
+     * <code>permitsPerSecond</code> on average, allowing bursts of up to
+     * <code>burst</code> records. Records over the limit are discarded on the
+     * calling thread and counted; the writer reports the counts periodically.
+     */
+    public void setRateLimit(@NotNull String tag, char level, double permitsPerSecond, int burst) {
+        rateLimiter.setLimit(tag, level, permitsPerSecond, burst);
+    }
+
+    public void removeRateLimit(@NotNull String tag, char level) {
+        rateLimiter.removeLimit(tag, level);
+    }
+
+    public double getInfoSampleRate() {
+        return rateLimiter.getInfoSampleRate();
+    }
+
+    /**
+     * Keeps only a random fraction of info records, e.g. <code>0.1</code>
+     * keeps one in ten. Skipped records are counted and reported like rate
+     * limited ones. Defaults to <code>1</code>, which keeps all of them.
+     */
+    public void setInfoSampleRate(double rate) {
+        rateLimiter.setInfoSampleRate(rate);
+    }
+
+    private boolean shouldLog(@NotNull String tag, char level) {
+        return isLoggable(tag, level) && rateLimiter.admit(tag, level);
+    }
+
+    /**
+     * Rolling counts of the records that reached the writer, by tag and level.
+     */
+    @NotNull
+    public LogStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Writes a warning if records were dropped since the last summary, the
+     * repeat counts of ended windows and, every few seconds, the records
+     * suppressed by rate limits and the lines the console dropped. Called
+     * by the writer.
+     * @param all {@code true} to also summarize windows that did not end yet
+     */
+    private void writeSummaries(boolean all) {
+        long now = System.currentTimeMillis();
+        long total = dropped.sum();
+        if (total > reportedDrops) {
+            long count = total - reportedDrops;
+            reportedDrops = total;
+            writeLines(now, 'w', TAG, count + " records dropped");
+        }
+        long window = config.getRepeatWindowMillis();
+        if (window > 0) {
+            exceptions.flushRepeats(now, window, all, repeatHandler);
+        }
+        if (all || now - lastRateLimitReport >= RATE_LIMIT_REPORT_MILLIS) {
+            lastRateLimitReport = now;
+            rateLimiter.report(summaryHandler);
+            // not on every batch, the summary itself may not fit the console
+            long consoleTotal = consoleDropped.sum();
+            if (consoleTotal > reportedConsoleDrops) {
+                long count = consoleTotal - reportedConsoleDrops;
+                reportedConsoleDrops = consoleTotal;
+                writeLines(now, 'w', TAG, count + " lines dropped by the console");
+            }
+        }
+    }
+
+    /**
+     * Writes the summaries when they are due although records are still
+     * pending, so they are not held back while the queue never drains.
+     */
+    private void writeSummariesIfDue() {
+        if (System.currentTimeMillis() - lastRateLimitReport >= RATE_LIMIT_REPORT_MILLIS) {
+            writeSummaries(false);
+        }
+    }
+
+    private void runWriter() {
+        LogRingBuffer ring = this.ring;
+        assert ring != null;
+        while (true) {
+            LogRingBuffer.Slot slot = ring.peek();
+            if (slot != null) {
+                if (slot.tag != null) {
+                    writeRecord(slot.time, slot.level, slot.tag, slot.message, slot.hasFields ? slot.fields : null, slot.exception);
+                } else {
+                    // published empty after close()
+                }
+                ring.release(slot);
+                if (batch.length >= getBatchLimit()) {
+                    flushBatch();
+                }
+                writeSummariesIfDue();
+                continue;
+            }
+            // nothing pending, the batch is complete
+            writeSummaries(false);
+            endBatch();
+            if (ring.isClosed() && ring.size() == 0) {
+                // every claimed slot has been published and written
+                break;
+            }
+            writerParked = true;
+            if (ring.peek() == null) {
+                LockSupport.parkNanos(this, getWriterParkNanos());
+            }
+            writerParked = false;
+        }
+        writeSummaries(true);
+        flushBatch();
+    }
+
+    private long getWriterParkNanos() {
+        if (!writerRunning) {
+            return 1000L;
+        }
+        long interval = config.getFlushPolicy().getIntervalMillis();
+        if (interval > 0 && batch.length > 0) {
+            long remaining = lastFlushTime + interval - System.currentTimeMillis();
+            return Math.max(1L, Math.min(remaining, WRITER_PARK_NANOS / 1_000_000L)) * 1_000_000L;
+        }
+        return WRITER_PARK_NANOS;
+    }
+
+    private int getBatchLimit() {
+        int bytes = config.getFlushPolicy().getBytes();
+        return bytes > 0 ? bytes : MAX_BATCH_BYTES;
+    }
+
+    /**
+     * Called by the writer when there is no more pending record.
+     * Writes the collected batch if the flush policy asks to.
+     */
+    private void endBatch() {
+        if (batch.length == 0) {
+            return;
+        }
+        LogConfig.FlushPolicy policy = config.getFlushPolicy();
+        long interval = policy.getIntervalMillis();
+        if (policy.isEveryBatch() ||
+                batch.length >= getBatchLimit() ||
+                (interval > 0 && System.currentTimeMillis() - lastFlushTime >= interval)) {
+            flushBatch();
+        }
+    }
+
+    /**
+     * Writes the collected batch with a single call and forces it to the
+     * storage device according to the sync policy.
+     */
+    private void flushBatch() {
+        if (appender != null && batch.length > 0) {
+            try {
+                long base = appender.size();
+                appender.append(batch.array, 0, batch.length);
+                if (index != null) {
+                    index.onFlush(base);
+                }
+                LogConfig.SyncPolicy sync = config.getSyncPolicy();
+                if (sync == LogConfig.SyncPolicy.ON_FLUSH ||
+                        (sync == LogConfig.SyncPolicy.ON_ERROR && batchHasError)) {
+                    appender.sync();
+                }
+            } catch (IOException ignored) {
+                if (binaryEncoder != null) {
+                    // the dropped batch may have defined tags, start over
+                    binaryEncoder.reset();
+                }
+            }
+        }
+        if (index != null) {
+            index.discard();
+        }
+        batch.clear();
+        batchHasError = false;
+        lastFlushTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Applies a pending {@link #switchLogFile} or a rotation requested by the
+     * resolver. Called by the writer before the first record of a batch is
+     * encoded, so a new binary file starts with its header and tags.
+     */
+    private void switchLogFileIfNeeded() {
+        assert appender != null;
+        File newFile = pendingLogFile.getAndSet(null);
+        if (newFile != null) {
+            if (!newFile.equals(logFile)) {
+                closeAppender();
+                openAppender(newFile);
+            }
+        } else if (resolver != null && shouldRotate(resolver)) {
+            File oldFile = logFile;
+            closeAppender();
+            try {
+                newFile = resolver.onRotate(oldFile);
+            } catch (Exception ex) {
+                System.err.println("failed to rotate log file: " + ex);
+                newFile = oldFile;
+            }
+            openAppender(newFile);
+        }
+    }
+
+    private boolean shouldRotate(@NotNull LogFileResolver resolver) {
+        assert appender != null;
+        try {
+            return resolver.shouldRotate(logFile, appender.size(), System.currentTimeMillis());
+        } catch (Exception ex) {
+            System.err.println("failed to rotate log file: " + ex);
+            return false;
+        }
+    }
+
+    private void openAppender(@NotNull File file) {
+        try {
+            appender = LogAppender.open(file, config);
+            logFile = file;
+            if (binaryEncoder != null) {
+                binaryEncoder.reset();
+            }
+            if (index != null) {
+                index.open(file, appender.size());
+            }
+        } catch (IOException e) {
+            System.err.println("failed to open log file: " + e);
+            appender = null;
+        }
+    }
+
+    private void closeAppender() {
+        if (index != null) {
+            index.close();
+        }
+        try {
+            assert appender != null;
+            appender.close();
+        } catch (IOException ignored) {
+        }
+        appender = null;
+    }
+
+    private void writeRecord(long time, char level, @NotNull String tag, @Nullable String message,
+                             @Nullable LogFields fields, @Nullable Exception ex) {
+        stats.record(time, level, tag);
+        if (fields != null) {
+            assert message != null;
+            // the fields of a JSON record are written separately
+            message = fields.format(message, jsonEncoder == null, fieldText);
+            if (message.isEmpty() && ex != null) {
+                message = null;
+            }
+        }
+        if (ex == null) {
+            assert message != null;
+            if (jsonEncoder != null) {
+                writeJson(time, level, tag, message, fields, null);
+            } else {
+                writeLines(time, level, tag, message);
+            }
+            return;
+        }
+        LogExceptionCache.Signature signature = exceptions.signatureOf(ex);
+        long window = config.getRepeatWindowMillis();
+        if (window > 0 && signature != null &&
+                exceptions.suppress(time, window, level, tag, message, ex, signature, repeatHandler)) {
+            return;
+        }
+        String trace = exceptions.render(ex, signature);
+        if (jsonEncoder != null) {
+            writeJson(time, level, tag, message, fields, trace);
+            return;
+        }
+        if (message != null) {
+            writeLines(time, level, tag, message);
+        }
+        writeLines(time, level, tag, trace);
+    }
+
+    /**
+     * Writes one JSON record. The filter sees the message, or the stack
+     * trace if there is no message, as a whole.
+     */
+    private void writeJson(long time, char level, @NotNull String tag, @Nullable String message,
+                           @Nullable LogFields fields, @Nullable String trace) {
+        if (appender != null && batch.length == 0) {
+            switchLogFileIfNeeded();
+        }
+        if (appender == null) {
+            return;
+        }
+        assert jsonEncoder != null;
+        Filter filter = Log.filter;
+        if (filter != null) {
+            OffsetDateTime dateTime = OffsetDateTime.ofInstant(Instant.ofEpochMilli(time), zoneId);
+            if (!filter.accept(dateTime, level, tag, message != null ? message : String.valueOf(trace))) {
+                return;
+            }
+        }
+        if (level == 'e') {
+            batchHasError = true;
+        }
+        DateTimeFormatter formatter = dateTimeFormatter;
+        jsonEncoder.encodeRecord(time, formatter, level, tag, message,
+                fields, trace != null ? trimEnd(trace) : null, batch);
+        if (console != null) {
+            if (message != null) {
+                offerConsole(time, formatter, level, tag, message);
+            }
+            if (trace != null) {
+                offerConsole(time, formatter, level, tag, trace);
+            }
+        }
+    }
+
+    private void offerConsole(long time, @NotNull DateTimeFormatter formatter, char level,
+                              @NotNull String tag, @NotNull String lines) {
+        assert console != null && consoleBuffer != null;
+        int length = lines.length();
+        int from = 0;
+        while (from < length) {
+            int to = lines.indexOf('\n', from);
+            if (to == -1) {
+                to = length;
+            }
+            if (to > from) {
+                consoleBuffer.clear();
+                encoder.encodeLine(time, formatter, level, tag, lines, from, to, consoleBuffer);
+                console.offer(level, consoleBuffer.array, 0, consoleBuffer.length, encoder.getTimestampLength());
+            }
+            from = to + 1;
+        }
+    }
+
+    @NotNull
+    private static String trimEnd(@NotNull String s) {
+        int end = s.length();
+        while (end > 0 && Character.isWhitespace(s.charAt(end - 1))) {
+            end--;
+        }
+        return s.substring(0, end);
+    }
+
+    private void writeLines(long time, char level, @NotNull String tag, @NotNull String lines) {
+        if (jsonEncoder != null) {
+            writeJson(time, level, tag, lines, null, null);
+            return;
+        }
+        if (appender != null && batch.length == 0) {
+            switchLogFileIfNeeded();
+        }
+        if (appender == null) {
+            return;
+        }
+        Filter filter = Log.filter;
+        DateTimeFormatter formatter = dateTimeFormatter;
+        OffsetDateTime dateTime = null;
+
+        int length = lines.length();
+        int from = 0;
+        while (from < length) {
+            int to = lines.indexOf('\n', from);
+            if (to == -1) {
+                to = length;
+            }
+            if (to > from) {
+                boolean accepted = true;
+                if (filter != null) {
+                    if (dateTime == null) {
+                        dateTime = OffsetDateTime.ofInstant(Instant.ofEpochMilli(time), zoneId);
+                    }
+                    accepted = filter.accept(dateTime, level, tag, lines.substring(from, to));
+                }
+                if (accepted) {
+                    if (level == 'e') {
+                        batchHasError = true;
+                    }
+                    if (binaryEncoder != null) {
+                        binaryEncoder.encodeLine(time, level, tag, lines, from, to, batch);
+                        if (console != null) {
+                            assert consoleBuffer != null;
+                            consoleBuffer.clear();
+                            encoder.encodeLine(time, formatter, level, tag, lines, from, to, consoleBuffer);
+                            console.offer(level, consoleBuffer.array, 0, consoleBuffer.length, encoder.getTimestampLength());
+                        }
+                    } else {
+                        int start = batch.length;
+                        encoder.encodeLine(time, formatter, level, tag, lines, from, to, batch);
+                        if (index != null) {
+                            index.onLine(time, start, batch.length - start);
+                        }
+                        if (console != null) {
+                            console.offer(level, batch.array, start, batch.length - start, encoder.getTimestampLength());
+                        }
+                    }
+                }
+            }
+            from = to + 1;
+        }
+    }
+
+    /**
+     * Starts a structured info record, see {@link LogEntry}.
+     */
+    @NotNull
+    public LogEntry info(@NotNull String tag) {
+        return shouldLog(tag, 'i') ? LogEntry.obtain(this, 'i', tag) : LogEntry.DISABLED;
+    }
+
     public void info(@NotNull String tag, @NotNull String message) {
-        atomWriteLines('i', tag, message);
+        if (shouldLog(tag, 'i')) {
+            append('i', tag, message, null);
+        }
+    }
+
+    public void info(@NotNull String tag, @NotNull Supplier<String> message) {
+        if (shouldLog(tag, 'i')) {
+            append('i', tag, message.get(), null);
+        }
     }
 
     public void info(@NotNull String tag, @NotNull Exception ex) {
-        atomWriteLines('i', tag, getExceptionMessage(ex));
+        if (shouldLog(tag, 'i')) {
+            append('i', tag, null, ex);
+        }
     }
 
     public void info(@NotNull String tag, @Nullable String message, @NotNull Exception ex) {
-        atomWriteLines('i', tag, message);
-        atomWriteLines('i', tag, getExceptionMessage(ex));
+        if (shouldLog(tag, 'i')) {
+            append('i', tag, message, ex);
+        }
+    }
+
+    @NotNull
+    public LogEntry warning(@NotNull String tag) {
+        return shouldLog(tag, 'w') ? LogEntry.obtain(this, 'w', tag) : LogEntry.DISABLED;
     }
 
     public void warning(@NotNull String tag, @NotNull String message) {
-        atomWriteLines('w', tag, message);
+        if (shouldLog(tag, 'w')) {
+            append('w', tag, message, null);
+        }
+    }
+
+    public void warning(@NotNull String tag, @NotNull Supplier<String> message) {
+        if (shouldLog(tag, 'w')) {
+            append('w', tag, message.get(), null);
+        }
     }
 
     public void warning(@NotNull String tag, @NotNull Exception ex) {
-        atomWriteLines('w', tag, getExceptionMessage(ex));
+        if (shouldLog(tag, 'w')) {
+            append('w', tag, null, ex);
+        }
     }
 
     public void warning(@NotNull String tag, @Nullable String message, @NotNull Exception ex) {
-        atomWriteLines('w', tag, message);
-        atomWriteLines('w', tag, getExceptionMessage(ex));
+        if (shouldLog(tag, 'w')) {
+            append('w', tag, message, ex);
+        }
+    }
+
+    @NotNull
+    public LogEntry error(@NotNull String tag) {
+        return shouldLog(tag, 'e') ? LogEntry.obtain(this, 'e', tag) : LogEntry.DISABLED;
     }
 
     public void error(@NotNull String tag, @NotNull String message) {
-        atomWriteLines('e', tag, message);
+        if (shouldLog(tag, 'e')) {
+            append('e', tag, message, null);
+        }
+    }
+
+    public void error(@NotNull String tag, @NotNull Supplier<String> message) {
+        if (shouldLog(tag, 'e')) {
+            append('e', tag, message.get(), null);
+        }
     }
 
     public void error(@NotNull String tag, @NotNull Exception ex) {
-        atomWriteLines('e', tag, getExceptionMessage(ex));
+        if (shouldLog(tag, 'e')) {
+            append('e', tag, null, ex);
+        }
     }
 
     public void error(@NotNull String tag, @Nullable String message, @NotNull Exception ex) {
-        atomWriteLines('e', tag, message);
-        atomWriteLines('e', tag, getExceptionMessage(ex));
+        if (shouldLog(tag, 'e')) {
+            append('e', tag, message, ex);
+        }
     }
 
-    @Nullable
-    private String getExceptionMessage(@NotNull Exception ex) {
-        try (ByteArrayOutputStream stream = new ByteArrayOutputStream();
-            OutputStreamWriter osw = new OutputStreamWriter(stream, StandardCharsets.UTF_8)) {
-            PrintWriter writer = new PrintWriter(osw);
-            ex.printStackTrace(writer);
-            writer.flush();
-            byte[] bytes = stream.toByteArray();
-            return new String(bytes, StandardCharsets.UTF_8);
-        } catch (IOException ignored) {
-            return null;
+    private void append(char level, @NotNull String tag, @Nullable String message, @Nullable Exception ex) {
+        if (message != null && message.isEmpty()) {
+            message = null;
+        }
+        if (message != null || ex != null) {
+            enqueue(level, tag, message, ex);
         }
     }
 
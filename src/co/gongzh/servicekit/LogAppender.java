@@ -0,0 +1,40 @@
+package co.gongzh.servicekit;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Where the log writer puts encoded bytes. Used by the writer only.
+ *
+ * @author Gong Zhang
+ */
+interface LogAppender {
+
+    void append(@NotNull byte[] bytes, int offset, int length) throws IOException;
+
+    /**
+     * Forces the appended bytes to the storage device.
+     */
+    void sync() throws IOException;
+
+    /**
+     * @return the length of the log file including everything appended.
+     */
+    long size();
+
+    void close() throws IOException;
+
+    @NotNull
+    static LogAppender open(@NotNull File file, @NotNull LogConfig config) throws IOException {
+        switch (config.getAppender()) {
+            case MEMORY_MAPPED:
+                return new MappedLogAppender(file, config.getSegmentSize());
+            case FILE_STREAM:
+            default:
+                return new StreamLogAppender(file);
+        }
+    }
+
+}
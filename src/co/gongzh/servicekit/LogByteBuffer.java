@@ -0,0 +1,39 @@
+package co.gongzh.servicekit;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * A growable byte array that is reused by the log writer thread.
+ * Not thread safe.
+ *
+ * @author Gong Zhang
+ */
+final class LogByteBuffer {
+
+    byte[] array;
+    int length;
+
+    LogByteBuffer(int capacity) {
+        this.array = new byte[capacity];
+    }
+
+    void ensure(int more) {
+        int required = length + more;
+        if (required > array.length) {
+            array = Arrays.copyOf(array, Math.max(required, array.length * 2));
+        }
+    }
+
+    void put(@NotNull byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, array, length, bytes.length);
+        length += bytes.length;
+    }
+
+    void clear() {
+        length = 0;
+    }
+
+}
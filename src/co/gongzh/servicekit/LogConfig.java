@@ -0,0 +1,372 @@
+package co.gongzh.servicekit;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Options of a {@link Log} instance. A <code>Log</code> takes a copy of
+ * the config when it is created, so changing a config object afterwards
+ * does not affect logs that already exist.
+ *
+ * @author Gong Zhang
+ */
+public final class LogConfig {
+
+    /**
+     * Decides when the records collected by the writer thread are written
+     * to the log file. The writer always writes everything it has collected
+     * with a single call; the policy only decides how long it may collect.
+     */
+    public static final class FlushPolicy {
+
+        private final long intervalMillis;
+        private final int bytes;
+
+        private FlushPolicy(long intervalMillis, int bytes) {
+            this.intervalMillis = intervalMillis;
+            this.bytes = bytes;
+        }
+
+        /**
+         * Writes after every batch, that is, whenever the writer thread has
+         * drained all pending records.
+         */
+        @NotNull
+        public static FlushPolicy everyBatch() {
+            return new FlushPolicy(0, 0);
+        }
+
+        /**
+         * Writes at most every <code>millis</code> milliseconds.
+         */
+        @NotNull
+        public static FlushPolicy interval(long millis) {
+            return of(millis, 0);
+        }
+
+        /**
+         * Writes once at least <code>bytes</code> bytes are collected. Records
+         * stay in memory until then, or until the log is shut down.
+         */
+        @NotNull
+        public static FlushPolicy size(int bytes) {
+            return of(0, bytes);
+        }
+
+        /**
+         * Writes when either limit is reached. A limit of <code>0</code> is ignored.
+         */
+        @NotNull
+        public static FlushPolicy of(long intervalMillis, int bytes) {
+            if (intervalMillis < 0 || bytes < 0) {
+                throw new IllegalArgumentException("flush limits must not be negative");
+            }
+            return new FlushPolicy(intervalMillis, bytes);
+        }
+
+        public long getIntervalMillis() {
+            return intervalMillis;
+        }
+
+        public int getBytes() {
+            return bytes;
+        }
+
+        boolean isEveryBatch() {
+            return intervalMillis == 0 && bytes == 0;
+        }
+
+    }
+
+    /**
+     * Decides when written data is forced to the storage device.
+     */
+    public enum SyncPolicy {
+        /**
+         * Leave writeback to the operating system.
+         */
+        NONE,
+        /**
+         * Force after every write that contains an error record.
+         */
+        ON_ERROR,
+        /**
+         * Force after every write.
+         */
+        ON_FLUSH
+    }
+
+    /**
+     * Decides what happens to a record when the queue of the writer is full.
+     * A record logged on the writer thread itself, e.g. by a filter or a
+     * {@link LogFileResolver}, never waits for room; it is dropped instead.
+     */
+    public enum OverflowPolicy {
+        /**
+         * The caller waits until the writer makes room.
+         */
+        BLOCK,
+        /**
+         * The new record is dropped.
+         */
+        DROP_NEWEST,
+        /**
+         * Info records are dropped once the queue is half full and warnings
+         * once it is three quarters full. Errors wait for room and are never dropped.
+         */
+        DROP_LOWEST_LEVEL
+    }
+
+    /**
+     * How the writer puts data into the log file.
+     */
+    public enum Appender {
+        /**
+         * One <code>write</code> call per flushed batch.
+         */
+        FILE_STREAM,
+        /**
+         * Copies into a memory-mapped segment of the file, leaving writeback
+         * to the page cache. The file grows by whole segments and the unused
+         * tail is trimmed when the log shuts down.
+         */
+        MEMORY_MAPPED
+    }
+
+    /**
+     * The layout of records in the log file.
+     */
+    public enum Format {
+        /**
+         * One line per record: timestamp, level, tag and message.
+         * Read by {@link LogParser}.
+         */
+        TEXT,
+        /**
+         * Epoch-millis timestamps, a tag dictionary and length-prefixed
+         * UTF-8 messages. Read by {@link BinaryLogReader}.
+         */
+        BINARY,
+        /**
+         * One JSON object per line, with the fields of a {@link LogEntry}
+         * as a nested object and the stack trace as a single string.
+         */
+        JSON
+    }
+
+    @NotNull private Log.Mode mode;
+    private int queueCapacity;
+    @NotNull private OverflowPolicy overflowPolicy;
+    private boolean consoleEnabled;
+    @NotNull private Appender appender;
+    private int segmentSize;
+    @NotNull private Format format;
+    private long repeatWindowMillis;
+    private char consoleLevel;
+    @NotNull private FlushPolicy flushPolicy;
+    @NotNull private SyncPolicy syncPolicy;
+    private int indexRecords;
+    private int indexBytes;
+
+    public LogConfig() {
+        this.mode = Log.Mode.EXECUTOR;
+        this.queueCapacity = 0;
+        this.overflowPolicy = OverflowPolicy.BLOCK;
+        this.consoleEnabled = true;
+        this.consoleLevel = 'i';
+        this.appender = Appender.FILE_STREAM;
+        this.segmentSize = 16 << 20;
+        this.format = Format.TEXT;
+        this.repeatWindowMillis = 0;
+        this.flushPolicy = FlushPolicy.everyBatch();
+        this.syncPolicy = SyncPolicy.NONE;
+        this.indexRecords = 0;
+        this.indexBytes = 0;
+    }
+
+    public LogConfig(@NotNull LogConfig other) {
+        this.mode = other.mode;
+        this.queueCapacity = other.queueCapacity;
+        this.overflowPolicy = other.overflowPolicy;
+        this.consoleEnabled = other.consoleEnabled;
+        this.consoleLevel = other.consoleLevel;
+        this.appender = other.appender;
+        this.segmentSize = other.segmentSize;
+        this.format = other.format;
+        this.repeatWindowMillis = other.repeatWindowMillis;
+        this.flushPolicy = other.flushPolicy;
+        this.syncPolicy = other.syncPolicy;
+        this.indexRecords = other.indexRecords;
+        this.indexBytes = other.indexBytes;
+    }
+
+    @NotNull
+    public Log.Mode getMode() {
+        return mode;
+    }
+
+    public void setMode(@NotNull Log.Mode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * @return the capacity set by {@link #setQueueCapacity}, or <code>0</code>
+     *         if none is set.
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Sets the maximum number of records waiting for the writer. In
+     * {@link Log.Mode#RING_BUFFER} this is the number of pre-allocated
+     * slots, rounded up to a power of two.
+     * <p>
+     * If no capacity is set, {@link Log.Mode#EXECUTOR} queues without a
+     * limit, so the {@link OverflowPolicy} never applies, and
+     * {@link Log.Mode#RING_BUFFER} uses 8192 slots.
+     * @param queueCapacity number of records, must be positive
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("queue capacity must be positive");
+        }
+        this.queueCapacity = queueCapacity;
+    }
+
+    @NotNull
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public void setOverflowPolicy(@NotNull OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    @NotNull
+    public FlushPolicy getFlushPolicy() {
+        return flushPolicy;
+    }
+
+    public void setFlushPolicy(@NotNull FlushPolicy flushPolicy) {
+        this.flushPolicy = flushPolicy;
+    }
+
+    @NotNull
+    public SyncPolicy getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    public void setSyncPolicy(@NotNull SyncPolicy syncPolicy) {
+        this.syncPolicy = syncPolicy;
+    }
+
+    public boolean isConsoleEnabled() {
+        return consoleEnabled;
+    }
+
+    /**
+     * Turns the echo to <code>stdout</code>/<code>stderr</code> on or off.
+     * The console has its own queue and thread, and drops lines rather than
+     * slowing down the file writer.
+     */
+    public void setConsoleEnabled(boolean consoleEnabled) {
+        this.consoleEnabled = consoleEnabled;
+    }
+
+    public char getConsoleLevel() {
+        return consoleLevel;
+    }
+
+    /**
+     * Sets the minimum level echoed to the console.
+     */
+    public void setConsoleLevel(char consoleLevel) {
+        Log.levelRank(consoleLevel); // validate
+        this.consoleLevel = consoleLevel;
+    }
+
+    @NotNull
+    public Appender getAppender() {
+        return appender;
+    }
+
+    public void setAppender(@NotNull Appender appender) {
+        this.appender = appender;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Sets the size of the segments mapped by {@link Appender#MEMORY_MAPPED}.
+     * @param segmentSize size in bytes, must be positive
+     */
+    public void setSegmentSize(int segmentSize) {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("segment size must be positive");
+        }
+        this.segmentSize = segmentSize;
+    }
+
+    @NotNull
+    public Format getFormat() {
+        return format;
+    }
+
+    public void setFormat(@NotNull Format format) {
+        this.format = format;
+    }
+
+    public long getRepeatWindowMillis() {
+        return repeatWindowMillis;
+    }
+
+    /**
+     * Collapses records with the same level, tag, message and exception
+     * within <code>millis</code> ms: the first one is written in full, the
+     * others are counted and reported as "repeated N times" when the window
+     * ends. <code>0</code> writes every record, which is the default.
+     */
+    public void setRepeatWindowMillis(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("repeat window must not be negative");
+        }
+        this.repeatWindowMillis = millis;
+    }
+
+    public int getIndexRecords() {
+        return indexRecords;
+    }
+
+    /**
+     * Adds an entry to the time index every <code>records</code> records.
+     * With {@link Format#TEXT}, setting this or {@link #setIndexBytes} to
+     * a positive value makes the log keep a sparse index next to the file,
+     * which {@link LogParser#stream(java.nio.file.Path, java.time.Instant, java.time.Instant)}
+     * uses to seek. <code>0</code> disables this limit, which is the default.
+     */
+    public void setIndexRecords(int records) {
+        if (records < 0) {
+            throw new IllegalArgumentException("index interval must not be negative");
+        }
+        this.indexRecords = records;
+    }
+
+    public int getIndexBytes() {
+        return indexBytes;
+    }
+
+    /**
+     * Adds an entry to the time index every <code>bytes</code> bytes of
+     * log, see {@link #setIndexRecords}. <code>0</code> disables this
+     * limit, which is the default.
+     */
+    public void setIndexBytes(int bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("index interval must not be negative");
+        }
+        this.indexBytes = bytes;
+    }
+
+}
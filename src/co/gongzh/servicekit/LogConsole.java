@@ -0,0 +1,126 @@
+package co.gongzh.servicekit;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Echoes log lines to <code>stdout</code> and <code>stderr</code> in ANSI
+ * color on its own thread, so a slow terminal never stalls the file writer.
+ * Lines are dropped when the console cannot keep up.
+ *
+ * @author Gong Zhang
+ */
+final class LogConsole {
+
+    private static final String ANSI_RED = "\033[0;31;1m";
+    private static final String ANSI_YELLOW = "\033[0;33;1m";
+    private static final String ANSI_GREEN = "\033[0;32;1m";
+    private static final String ANSI_NC = "\033[0m";
+
+    private static final int CAPACITY = 4096;
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 1000;
+
+    private static final class Entry {
+
+        final char level;
+        final int timestampLength;
+        final byte[] line;
+
+        Entry(char level, int timestampLength, byte[] line) {
+            this.level = level;
+            this.timestampLength = timestampLength;
+            this.line = line;
+        }
+
+    }
+
+    private static final Entry END = new Entry('i', 0, new byte[0]);
+
+    private final char minLevel;
+    @NotNull private final ArrayBlockingQueue<Entry> queue;
+    @NotNull private final LongAdder dropped;
+    @NotNull private final Thread thread;
+    private volatile boolean running;
+
+    /**
+     * @param dropped counts the lines dropped because the queue was full
+     */
+    LogConsole(char minLevel, @NotNull LongAdder dropped) {
+        this.minLevel = minLevel;
+        this.queue = new ArrayBlockingQueue<>(CAPACITY);
+        this.dropped = dropped;
+        this.thread = new Thread(this::run, "Log.console");
+        this.thread.setDaemon(true);
+    }
+
+    void startup() {
+        running = true;
+        thread.start();
+    }
+
+    /**
+     * Stops the console after the queued lines are printed, or after a
+     * timeout if the console is stuck.
+     */
+    void shutdown() {
+        running = false;
+        boolean ignored = queue.offer(END);
+        try {
+            thread.join(SHUTDOWN_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues an encoded log line. Called by the log writer, never blocks.
+     */
+    void offer(char level, @NotNull byte[] array, int offset, int length, int timestampLength) {
+        if (Log.levelRank(level) < Log.levelRank(minLevel)) {
+            return;
+        }
+        Entry entry = new Entry(level, timestampLength, Arrays.copyOfRange(array, offset, offset + length));
+        if (!queue.offer(entry)) {
+            dropped.increment();
+        }
+    }
+
+    private void run() {
+        while (true) {
+            Entry entry;
+            try {
+                entry = queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (entry == END || (entry == null && !running)) {
+                break;
+            }
+            if (entry != null) {
+                print(entry);
+            }
+        }
+    }
+
+    private static void print(@NotNull Entry entry) {
+        // only the level is colored, see LogEncoder for the layout
+        byte[] line = entry.line;
+        int restStart = entry.timestampLength + 5;
+        String timestamp = new String(line, 0, entry.timestampLength, StandardCharsets.UTF_8);
+        String rest = new String(line, restStart, line.length - restStart, StandardCharsets.UTF_8);
+        char level = entry.level;
+        String ansiColor = level == 'i' ? ANSI_GREEN : (level == 'w' ? ANSI_YELLOW : ANSI_RED);
+        String colorful = timestamp + "  " + ansiColor + level + ANSI_NC + "  " + rest;
+        if (level == 'e') {
+            System.err.print(colorful);
+        } else {
+            System.out.print(colorful);
+        }
+    }
+
+}
@@ -0,0 +1,153 @@
+package co.gongzh.servicekit;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Encodes log lines as UTF-8 straight into a {@link LogByteBuffer}.
+ * <p>
+ * The formatted timestamp is cached: for the default layout only the
+ * milliseconds are written per line and the rest is reused for the whole
+ * second; for a custom formatter the whole text is reused within the same
+ * millisecond. Used by the writer thread only, so it is not thread safe.
+ *
+ * @author Gong Zhang
+ */
+final class LogEncoder {
+
+    @NotNull private final ZoneId zoneId;
+
+    private DateTimeFormatter cachedFormatter;
+
+    // default layout: "<prefix>.SSS<suffix>", cached per second
+    private long cachedSecond = Long.MIN_VALUE;
+    private byte[] secondPrefix;
+    private byte[] secondSuffix;
+
+    // custom layout: whole timestamp, cached per millisecond
+    private long cachedMillis = Long.MIN_VALUE;
+    private byte[] millisBytes;
+
+    private int timestampLength;
+
+    LogEncoder(@NotNull ZoneId zoneId) {
+        this.zoneId = zoneId;
+    }
+
+    /**
+     * Appends <code>"%s  %c  %s \t%s\n"</code> of timestamp, level, tag and
+     * <code>message[from, to)</code>. Do not change the format, see {@link LogParser}.
+     */
+    void encodeLine(long time, @NotNull DateTimeFormatter formatter, char level,
+                    @NotNull String tag, @NotNull String message, int from, int to,
+                    @NotNull LogByteBuffer out) {
+        encodeTimestamp(time, formatter, out);
+        out.ensure(5);
+        byte[] a = out.array;
+        int n = out.length;
+        a[n++] = ' ';
+        a[n++] = ' ';
+        a[n++] = (byte) level;
+        a[n++] = ' ';
+        a[n++] = ' ';
+        out.length = n;
+        putUTF8(tag, 0, tag.length(), out);
+        out.ensure(2);
+        out.array[out.length++] = ' ';
+        out.array[out.length++] = '\t';
+        putUTF8(message, from, to, out);
+        out.ensure(1);
+        out.array[out.length++] = '\n';
+    }
+
+    /**
+     * @return the length in bytes of the timestamp written by the last
+     *         {@link #encodeLine} call.
+     */
+    int getTimestampLength() {
+        return timestampLength;
+    }
+
+    void encodeTimestamp(long time, @NotNull DateTimeFormatter formatter, @NotNull LogByteBuffer out) {
+        if (formatter != cachedFormatter) {
+            cachedFormatter = formatter;
+            cachedSecond = Long.MIN_VALUE;
+            cachedMillis = Long.MIN_VALUE;
+        }
+
+        if (formatter == Log.DEFAULT_DATE_TIME_FORMATTER) {
+            long second = Math.floorDiv(time, 1000L);
+            if (second != cachedSecond) {
+                String text = format(time, formatter);
+                int dot = text.lastIndexOf('.');
+                secondPrefix = text.substring(0, dot).getBytes(StandardCharsets.UTF_8);
+                secondSuffix = text.substring(dot + 4).getBytes(StandardCharsets.UTF_8);
+                cachedSecond = second;
+            }
+            int millis = (int) Math.floorMod(time, 1000L);
+            out.put(secondPrefix);
+            out.ensure(4);
+            byte[] a = out.array;
+            int n = out.length;
+            a[n++] = '.';
+            a[n++] = (byte) ('0' + millis / 100);
+            a[n++] = (byte) ('0' + millis / 10 % 10);
+            a[n++] = (byte) ('0' + millis % 10);
+            out.length = n;
+            out.put(secondSuffix);
+            timestampLength = secondPrefix.length + 4 + secondSuffix.length;
+        } else {
+            if (time != cachedMillis) {
+                millisBytes = format(time, formatter).getBytes(StandardCharsets.UTF_8);
+                cachedMillis = time;
+            }
+            out.put(millisBytes);
+            timestampLength = millisBytes.length;
+        }
+    }
+
+    @NotNull
+    private String format(long time, @NotNull DateTimeFormatter formatter) {
+        return OffsetDateTime.ofInstant(Instant.ofEpochMilli(time), zoneId).format(formatter);
+    }
+
+    /**
+     * Same as <code>s.substring(from, to).getBytes(UTF_8)</code>, without
+     * the intermediate objects. Unpaired surrogates become <code>'?'</code>.
+     */
+    static void putUTF8(@NotNull String s, int from, int to, @NotNull LogByteBuffer out) {
+        out.ensure((to - from) * 3);
+        byte[] a = out.array;
+        int n = out.length;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                a[n++] = (byte) c;
+            } else if (c < 0x800) {
+                a[n++] = (byte) (0xC0 | (c >> 6));
+                a[n++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    a[n++] = (byte) (0xF0 | (cp >> 18));
+                    a[n++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    a[n++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    a[n++] = (byte) (0x80 | (cp & 0x3F));
+                } else {
+                    a[n++] = '?';
+                }
+            } else {
+                a[n++] = (byte) (0xE0 | (c >> 12));
+                a[n++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                a[n++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        out.length = n;
+    }
+
+}
@@ -0,0 +1,125 @@
+package co.gongzh.servicekit;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A structured log record: a message template plus typed key/value fields.
+ * Obtained from {@link Log#i(String)} and friends, for example:
+ * <pre>
+ * Log.i("http").with("path", path).with("status", 200).log("served {path}");
+ * </pre>
+ * Every <code>{key}</code> of the template is replaced with the value of the
+ * field and the other fields are appended as <code>key=value</code>. With
+ * {@link LogConfig.Format#JSON} the fields are written as a JSON object
+ * instead. Either way the formatting happens on the writer thread.
+ * <p>
+ * Entries are reused by the calling thread, so an entry must not be kept
+ * or shared after {@link #log(String)}. An entry that is never logged is
+ * discarded, not reused. If the level of the record is disabled, a shared
+ * entry that ignores all fields is returned.
+ *
+ * @author Gong Zhang
+ */
+public final class LogEntry {
+
+    static final LogEntry DISABLED = new LogEntry();
+
+    private static final ThreadLocal<LogEntry> cache = ThreadLocal.withInitial(LogEntry::new);
+
+    @Nullable private Log log;
+    private char level;
+    @Nullable private String tag;
+    private boolean enabled;
+    private boolean inUse;
+    @NotNull final LogFields fields = new LogFields();
+
+    private LogEntry() {
+    }
+
+    /**
+     * @param log the target, or {@code null} for the shared log
+     */
+    @NotNull
+    static LogEntry obtain(@Nullable Log log, char level, @NotNull String tag) {
+        LogEntry entry = cache.get();
+        if (entry.inUse) {
+            // another entry of this thread is not logged yet: nested in the
+            // arguments of its fields, or abandoned without log(). Cache the
+            // new one, so an abandoned entry does not disable the reuse.
+            entry = new LogEntry();
+            cache.set(entry);
+        }
+        entry.inUse = true;
+        entry.enabled = true;
+        entry.log = log;
+        entry.level = level;
+        entry.tag = tag;
+        return entry;
+    }
+
+    @NotNull
+    public LogEntry with(@NotNull String key, long value) {
+        if (enabled) {
+            fields.add(key, LogFields.LONG, value, null);
+        }
+        return this;
+    }
+
+    @NotNull
+    public LogEntry with(@NotNull String key, double value) {
+        if (enabled) {
+            fields.add(key, LogFields.DOUBLE, Double.doubleToRawLongBits(value), null);
+        }
+        return this;
+    }
+
+    @NotNull
+    public LogEntry with(@NotNull String key, boolean value) {
+        if (enabled) {
+            fields.add(key, LogFields.BOOLEAN, value ? 1 : 0, null);
+        }
+        return this;
+    }
+
+    @NotNull
+    public LogEntry with(@NotNull String key, char value) {
+        if (enabled) {
+            fields.add(key, LogFields.CHAR, value, null);
+        }
+        return this;
+    }
+
+    /**
+     * Adds a field whose value is formatted with <code>String.valueOf</code>
+     * on the writer thread, so <code>value</code> should not be mutated afterwards.
+     */
+    @NotNull
+    public LogEntry with(@NotNull String key, @Nullable Object value) {
+        if (enabled) {
+            fields.add(key, LogFields.OBJECT, 0, value);
+        }
+        return this;
+    }
+
+    public void log(@NotNull String template) {
+        log(template, null);
+    }
+
+    public void log(@NotNull String template, @Nullable Exception ex) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            assert tag != null;
+            Log.appendEntry(log, level, tag, template, fields, ex);
+        } finally {
+            log = null;
+            tag = null;
+            enabled = false;
+            fields.clear();
+            inUse = false;
+        }
+    }
+
+}
@@ -0,0 +1,214 @@
+package co.gongzh.servicekit;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Renders stack traces for the log writer and collapses repeated exceptions.
+ * <p>
+ * Exceptions are identified by a signature of class, message and stack
+ * frames of the whole cause chain. Rendered traces are cached by signature,
+ * so a failing dependency that throws the same exception over and over is
+ * rendered only once. Identical records within a window are counted instead
+ * of written, and summarized when the window ends. Used by the writer only,
+ * so it is not thread safe.
+ *
+ * @author Gong Zhang
+ */
+final class LogExceptionCache {
+
+    private static final int MAX_RENDERED = 256;
+    private static final int MAX_REPEATS = 1024;
+    private static final int MAX_CAUSES = 16;
+
+    @FunctionalInterface
+    interface RepeatHandler {
+        void onRepeat(long time, char level, @NotNull String tag, @NotNull String message);
+    }
+
+    static final class Signature {
+
+        @NotNull private final Object[] parts;
+        private final int hash;
+
+        private Signature(@NotNull Object[] parts) {
+            this.parts = parts;
+            this.hash = Arrays.deepHashCode(parts);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Signature)) return false;
+            Signature that = (Signature) o;
+            return hash == that.hash && Arrays.deepEquals(parts, that.parts);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+    }
+
+    private static final class RepeatKey {
+
+        final char level;
+        @NotNull final String tag;
+        @Nullable final String message;
+        @NotNull final Signature signature;
+
+        RepeatKey(char level, @NotNull String tag, @Nullable String message, @NotNull Signature signature) {
+            this.level = level;
+            this.tag = tag;
+            this.message = message;
+            this.signature = signature;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof RepeatKey)) return false;
+            RepeatKey that = (RepeatKey) o;
+            return level == that.level && tag.equals(that.tag) &&
+                    Objects.equals(message, that.message) && signature.equals(that.signature);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(level, tag, message, signature);
+        }
+
+    }
+
+    private static final class Repeat {
+
+        final long start;
+        @NotNull final String summary;
+        int count;
+
+        Repeat(long start, @NotNull String summary) {
+            this.start = start;
+            this.summary = summary;
+        }
+
+    }
+
+    @NotNull private final LinkedHashMap<Signature, String> rendered;
+    @NotNull private final HashMap<RepeatKey, Repeat> repeats;
+
+    LogExceptionCache() {
+        this.rendered = new LinkedHashMap<Signature, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Signature, String> eldest) {
+                return size() > MAX_RENDERED;
+            }
+        };
+        this.repeats = new HashMap<>();
+    }
+
+    /**
+     * @return the signature, or {@code null} if the exception has suppressed
+     *         exceptions and is always rendered in full.
+     */
+    @Nullable
+    Signature signatureOf(@NotNull Throwable ex) {
+        List<Object> parts = new ArrayList<>();
+        Set<Throwable> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Throwable t = ex; t != null && parts.size() < MAX_CAUSES * 3 && seen.add(t); t = t.getCause()) {
+            if (t.getSuppressed().length > 0) {
+                return null;
+            }
+            parts.add(t.getClass());
+            parts.add(t.getMessage());
+            parts.add(t.getStackTrace());
+        }
+        return new Signature(parts.toArray());
+    }
+
+    @NotNull
+    String render(@NotNull Throwable ex, @Nullable Signature signature) {
+        if (signature == null) {
+            return renderStackTrace(ex);
+        }
+        String text = rendered.get(signature);
+        if (text == null) {
+            text = renderStackTrace(ex);
+            rendered.put(signature, text);
+        }
+        return text;
+    }
+
+    /**
+     * Counts the record if an identical one was written less than
+     * <code>window</code> ms ago.
+     * @return {@code true} if the record should not be written.
+     */
+    boolean suppress(long time, long window, char level, @NotNull String tag, @Nullable String message,
+                     @NotNull Throwable ex, @NotNull Signature signature, @NotNull RepeatHandler handler) {
+        RepeatKey key = new RepeatKey(level, tag, message, signature);
+        Repeat repeat = repeats.get(key);
+        if (repeat != null) {
+            if (time - repeat.start < window) {
+                repeat.count++;
+                return true;
+            }
+            // the window ended but was not summarized yet
+            summarize(time, key, repeat, handler);
+        } else if (repeats.size() >= MAX_REPEATS) {
+            return false;
+        }
+        String summary = message != null ? message + " " + ex : ex.toString();
+        repeats.put(key, new Repeat(time, summary));
+        return false;
+    }
+
+    /**
+     * Summarizes and forgets the windows that ended before <code>now</code>,
+     * or all windows if <code>all</code> is {@code true}.
+     */
+    void flushRepeats(long now, long window, boolean all, @NotNull RepeatHandler handler) {
+        if (repeats.isEmpty()) {
+            return;
+        }
+        Iterator<Map.Entry<RepeatKey, Repeat>> it = repeats.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<RepeatKey, Repeat> entry = it.next();
+            Repeat repeat = entry.getValue();
+            if (all || now - repeat.start >= window) {
+                it.remove();
+                summarize(now, entry.getKey(), repeat, handler);
+            }
+        }
+    }
+
+    private static void summarize(long now, @NotNull RepeatKey key, @NotNull Repeat repeat, @NotNull RepeatHandler handler) {
+        if (repeat.count > 0) {
+            handler.onRepeat(now, key.level, key.tag, repeat.summary + " (repeated " + repeat.count + " times)");
+        }
+    }
+
+    @NotNull
+    private static String renderStackTrace(@NotNull Throwable ex) {
+        StringWriter stream = new StringWriter();
+        PrintWriter writer = new PrintWriter(stream);
+        ex.printStackTrace(writer);
+        writer.flush();
+        return stream.toString();
+    }
+
+}
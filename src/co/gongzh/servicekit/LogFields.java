@@ -0,0 +1,154 @@
+package co.gongzh.servicekit;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * The typed key/value fields of a {@link LogEntry}. Primitive values are
+ * kept as raw <code>long</code> bits, so adding them does not box. The
+ * arrays grow on demand and are reused after {@link #clear()}.
+ *
+ * @author Gong Zhang
+ */
+final class LogFields {
+
+    static final byte LONG = 0;
+    static final byte DOUBLE = 1;
+    static final byte BOOLEAN = 2;
+    static final byte CHAR = 3;
+    static final byte OBJECT = 4;
+
+    String[] keys;
+    byte[] kinds;
+    long[] values;
+    Object[] objects;
+    int size;
+
+    LogFields() {
+        this(8);
+    }
+
+    private LogFields(int capacity) {
+        this.keys = new String[capacity];
+        this.kinds = new byte[capacity];
+        this.values = new long[capacity];
+        this.objects = new Object[capacity];
+    }
+
+    void add(@NotNull String key, byte kind, long value, @Nullable Object object) {
+        if (size == keys.length) {
+            grow(size * 2);
+        }
+        keys[size] = key;
+        kinds[size] = kind;
+        values[size] = value;
+        objects[size] = object;
+        size++;
+    }
+
+    void copyFrom(@NotNull LogFields other) {
+        if (keys.length < other.size) {
+            grow(other.size);
+        }
+        System.arraycopy(other.keys, 0, keys, 0, other.size);
+        System.arraycopy(other.kinds, 0, kinds, 0, other.size);
+        System.arraycopy(other.values, 0, values, 0, other.size);
+        System.arraycopy(other.objects, 0, objects, 0, other.size);
+        if (size > other.size) {
+            Arrays.fill(keys, other.size, size, null);
+            Arrays.fill(objects, other.size, size, null);
+        }
+        size = other.size;
+    }
+
+    @NotNull
+    LogFields copy() {
+        LogFields copy = new LogFields(Math.max(size, 1));
+        copy.copyFrom(this);
+        return copy;
+    }
+
+    void clear() {
+        Arrays.fill(keys, 0, size, null);
+        Arrays.fill(objects, 0, size, null);
+        size = 0;
+    }
+
+    /**
+     * Replaces every <code>{key}</code> of <code>template</code> with the
+     * value of the field and, if <code>appendUnused</code> is {@code true},
+     * appends the other fields as <code>key=value</code>.
+     */
+    @NotNull
+    String format(@NotNull String template, boolean appendUnused, @NotNull StringBuilder sb) {
+        sb.setLength(0);
+        long used = 0;
+        int length = template.length();
+        int from = 0;
+        while (from < length) {
+            int open = template.indexOf('{', from);
+            int close = open == -1 ? -1 : template.indexOf('}', open + 1);
+            if (close == -1) {
+                sb.append(template, from, length);
+                break;
+            }
+            int index = indexOf(template, open + 1, close);
+            if (index == -1) {
+                sb.append(template, from, open + 1);
+                from = open + 1;
+            } else {
+                sb.append(template, from, open);
+                appendValue(index, sb);
+                if (index < 64) {
+                    used |= 1L << index;
+                }
+                from = close + 1;
+            }
+        }
+        if (appendUnused) {
+            for (int i = 0; i < size; i++) {
+                boolean isUsed = i < 64 ? (used & (1L << i)) != 0 : template.contains("{" + keys[i] + "}");
+                if (!isUsed) {
+                    if (sb.length() > 0) {
+                        sb.append(' ');
+                    }
+                    sb.append(keys[i]).append('=');
+                    appendValue(i, sb);
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    void appendValue(int index, @NotNull StringBuilder sb) {
+        long value = values[index];
+        switch (kinds[index]) {
+            case LONG: sb.append(value); break;
+            case DOUBLE: sb.append(Double.longBitsToDouble(value)); break;
+            case BOOLEAN: sb.append(value != 0); break;
+            case CHAR: sb.append((char) value); break;
+            default: sb.append(objects[index]); break;
+        }
+    }
+
+    private int indexOf(@NotNull String template, int from, int to) {
+        int length = to - from;
+        for (int i = 0; i < size; i++) {
+            String key = keys[i];
+            if (key.length() == length && template.startsWith(key, from)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void grow(int capacity) {
+        keys = Arrays.copyOf(keys, capacity);
+        kinds = Arrays.copyOf(kinds, capacity);
+        values = Arrays.copyOf(values, capacity);
+        objects = Arrays.copyOf(objects, capacity);
+    }
+
+}
@@ -4,6 +4,8 @@ import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
 import java.time.ZoneId;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * @author Gong Zhang
@@ -27,6 +29,15 @@ public interface LogFileResolver {
      */
     default void onLog() {}
 
+    /**
+     * Whether the shared log has to call {@link #onLog()} before every
+     * record. Calling it takes a global lock, so an implementation that
+     * does not override {@link #onLog()} should return {@code false}.
+     */
+    default boolean usesOnLog() {
+        return true;
+    }
+
     /**
      * Returns the log file that currently using.
      * @return the current log file.
@@ -34,9 +45,50 @@ public interface LogFileResolver {
     @NotNull
     File getCurrentLogFile();
 
+    /**
+     * Called by the log writer before it writes a batch of records. Unlike
+     * {@link #onLog()} this is not called for every record, and never
+     * concurrently, so it is the cheap place to decide on rotation.
+     * @param currentFile the file being written
+     * @param size current length of the file in bytes
+     * @param now current time in milliseconds
+     * @return {@code true} to close the current file and call {@link #onRotate(File)}.
+     */
+    default boolean shouldRotate(@NotNull File currentFile, long size, long now) {
+        return false;
+    }
+
+    /**
+     * Called by the log writer after it closed <code>oldFile</code> because
+     * {@link #shouldRotate} returned {@code true}. The implementation may
+     * rename or archive the old file.
+     * @param oldFile the file just closed
+     * @return the file to continue with, which may be the same path.
+     */
+    @NotNull
+    default File onRotate(@NotNull File oldFile) throws Exception {
+        return getCurrentLogFile();
+    }
+
+    /**
+     * Returns every log file this resolver has produced that still exists,
+     * oldest first, ending with the current file. Used by {@link LogQuery}.
+     */
+    @NotNull
+    default List<File> getLogFiles() {
+        return Collections.singletonList(getCurrentLogFile());
+    }
+
     @NotNull
     default ZoneId getLogZoneId() {
         return ZoneId.systemDefault();
     }
 
+    /**
+     * Called when the log using this resolver shuts down, after its last
+     * file is closed. The implementation may stop background work here. A
+     * log started later may still use the resolver again.
+     */
+    default void close() {}
+
 }
@@ -0,0 +1,326 @@
+package co.gongzh.servicekit;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A sparse time index of a text log file, kept next to it as
+ * <code>&lt;log&gt;.idx</code>.
+ * <p>
+ * The file is an 8 byte header (<code>"SKLI"</code>, version byte, three
+ * zero bytes) followed by entries of two big-endian longs: a time and the
+ * offset of a line in the log. The time is the largest timestamp of all
+ * records up to and including that line, so the times never decrease and
+ * every record before an entry with time <code>t</code> is no later than
+ * <code>t</code>, even if the writer saw records slightly out of order.
+ * <p>
+ * An instance writes the index of the file the log writer has open. It is
+ * used by the writer thread only, so it is not thread safe. Only the writer
+ * writes index files; {@link #seek} builds a missing index in memory.
+ *
+ * @author Gong Zhang
+ */
+final class LogIndex {
+
+    static final String SUFFIX = ".idx";
+
+    /**
+     * How far the timestamps of records may be out of order in a log.
+     */
+    static final long MAX_SKEW_MILLIS = 1000L;
+
+    private static final byte[] HEADER = { 'S', 'K', 'L', 'I', 1, 0, 0, 0 };
+    private static final int ENTRY_SIZE = 16;
+    private static final int BUILD_BYTES = 64 << 10;
+    private static final int MAX_BUILT = 16;
+
+    private static final class Built {
+
+        final long logSize;
+        final long modified;
+        @NotNull final long[] entries;
+
+        Built(long logSize, long modified, @NotNull long[] entries) {
+            this.logSize = logSize;
+            this.modified = modified;
+            this.entries = entries;
+        }
+
+    }
+
+    // indexes built by seek(), least recently used first
+    private static final Map<Path, Built> built = new LinkedHashMap<Path, Built>(MAX_BUILT, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Built> eldest) {
+            return size() > MAX_BUILT;
+        }
+    };
+
+    private final int everyRecords;
+    private final int everyBytes;
+    @Nullable private FileChannel channel;
+    private long maxTime;
+    private boolean first;
+    private int records;
+    private long bytes;
+
+    // entries of the current batch, offsets relative to the batch
+    private long[] pendingTimes = new long[16];
+    private int[] pendingOffsets = new int[16];
+    private int pendingCount;
+    @NotNull private final ByteBuffer buffer = ByteBuffer.allocate(ENTRY_SIZE * 64);
+
+    LogIndex(int everyRecords, int everyBytes) {
+        this.everyRecords = everyRecords;
+        this.everyBytes = everyBytes;
+    }
+
+    @NotNull
+    static Path indexOf(@NotNull Path log) {
+        return log.resolveSibling(log.getFileName() + SUFFIX);
+    }
+
+    /**
+     * Opens the index of <code>logFile</code>. An index that does not
+     * match the log, e.g. one left from an earlier file, is started over.
+     */
+    void open(@NotNull File logFile, long logSize) {
+        Path path = Paths.get(logFile.getPath() + SUFFIX);
+        try {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            int count = countEntries(channel, logSize);
+            maxTime = Long.MIN_VALUE;
+            if (count < 0) {
+                channel.truncate(0);
+                channel.write(ByteBuffer.wrap(HEADER), 0);
+            } else {
+                // drop a partly written entry
+                channel.truncate(HEADER.length + (long) count * ENTRY_SIZE);
+                if (count > 0) {
+                    ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+                    channel.read(entry, HEADER.length + (long) (count - 1) * ENTRY_SIZE);
+                    maxTime = entry.getLong(0);
+                }
+            }
+            channel.position(channel.size());
+            this.channel = channel;
+        } catch (IOException e) {
+            System.err.println("failed to open log index: " + e);
+            channel = null;
+        }
+        first = true;
+    }
+
+    void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Called for every line encoded into the batch.
+     */
+    void onLine(long time, int offsetInBatch, int length) {
+        if (time > maxTime) {
+            maxTime = time;
+        }
+        if (first || (everyRecords > 0 && records >= everyRecords) || (everyBytes > 0 && bytes >= everyBytes)) {
+            if (pendingCount == pendingTimes.length) {
+                pendingTimes = Arrays.copyOf(pendingTimes, pendingCount * 2);
+                pendingOffsets = Arrays.copyOf(pendingOffsets, pendingCount * 2);
+            }
+            pendingTimes[pendingCount] = maxTime;
+            pendingOffsets[pendingCount] = offsetInBatch;
+            pendingCount++;
+            first = false;
+            records = 0;
+            bytes = 0;
+        }
+        records++;
+        bytes += length;
+    }
+
+    /**
+     * Writes the entries of a batch that starts at <code>base</code> in the log.
+     */
+    void onFlush(long base) {
+        if (channel != null && pendingCount > 0) {
+            try {
+                for (int i = 0; i < pendingCount; i++) {
+                    if (buffer.remaining() < ENTRY_SIZE) {
+                        writeBuffer();
+                    }
+                    buffer.putLong(pendingTimes[i]);
+                    buffer.putLong(base + pendingOffsets[i]);
+                }
+                writeBuffer();
+            } catch (IOException e) {
+                System.err.println("failed to write log index: " + e);
+                buffer.clear();
+                close();
+            }
+        }
+        pendingCount = 0;
+    }
+
+    /**
+     * Forgets the entries of a batch that was not written.
+     */
+    void discard() {
+        pendingCount = 0;
+    }
+
+    private void writeBuffer() throws IOException {
+        assert channel != null;
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Returns the offset to start reading at to see every record from
+     * <code>fromMillis</code> on. If <code>log</code> has no index or it does
+     * not match, one is built in memory and kept for the next few calls, as
+     * long as the log is not modified.
+     */
+    static long seek(@NotNull Path log, long fromMillis) throws IOException {
+        long logSize = Files.size(log);
+        long[] entries = read(indexOf(log), logSize);
+        if (entries == null) {
+            entries = getBuilt(log, logSize);
+        }
+        // the last entry earlier than fromMillis
+        int low = 0;
+        int high = entries.length / 2 - 1;
+        long offset = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (entries[mid * 2] < fromMillis) {
+                offset = entries[mid * 2 + 1];
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * @return time and offset pairs, or {@code null} if there is no
+     *         valid index for a log of <code>logSize</code> bytes.
+     */
+    @Nullable
+    private static long[] read(@NotNull Path path, long logSize) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            int count = countEntries(channel, logSize);
+            if (count < 0) {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(count * ENTRY_SIZE);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, HEADER.length + buffer.position()) == -1) {
+                    return null;
+                }
+            }
+            buffer.flip();
+            long[] entries = new long[count * 2];
+            buffer.asLongBuffer().get(entries);
+            return entries;
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the number of complete entries, or <code>-1</code> if the
+     *         header is broken or the index points past the end of the log.
+     */
+    private static int countEntries(@NotNull FileChannel channel, long logSize) throws IOException {
+        long size = channel.size();
+        if (size < HEADER.length) {
+            return -1;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER.length);
+        if (channel.read(header, 0) != HEADER.length || !Arrays.equals(header.array(), HEADER)) {
+            return -1;
+        }
+        long count = (size - HEADER.length) / ENTRY_SIZE;
+        if (count > 0) {
+            ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+            if (channel.read(entry, HEADER.length + (count - 1) * ENTRY_SIZE) != ENTRY_SIZE ||
+                    entry.getLong(8) >= logSize) {
+                return -1;
+            }
+        }
+        return (int) Math.min(count, Integer.MAX_VALUE / 2);
+    }
+
+    @NotNull
+    private static long[] getBuilt(@NotNull Path log, long logSize) throws IOException {
+        Path key = log.toAbsolutePath();
+        long modified = Files.getLastModifiedTime(log).toMillis();
+        synchronized (built) {
+            Built b = built.get(key);
+            if (b != null && b.logSize == logSize && b.modified == modified) {
+                return b.entries;
+            }
+        }
+        long[] entries = build(log);
+        synchronized (built) {
+            built.put(key, new Built(logSize, modified, entries));
+        }
+        return entries;
+    }
+
+    @NotNull
+    private static long[] build(@NotNull Path log) throws IOException {
+        long[] entries = new long[64];
+        int count = 0;
+        long maxTime = Long.MIN_VALUE;
+        long lastOffset = -BUILD_BYTES;
+        try (InputStream in = Channels.newInputStream(FileChannel.open(log, StandardOpenOption.READ))) {
+            LogLineReader reader = new LogLineReader(in);
+            LogParser.LineView view = new LogParser.LineView();
+            while (reader.next()) {
+                if (!view.parse(reader.array(), reader.lineFrom(), reader.lineTo())) {
+                    continue;
+                }
+                maxTime = Math.max(maxTime, view.getEpochMillis());
+                long offset = reader.lineOffset();
+                if (offset - lastOffset >= BUILD_BYTES) {
+                    if (count * 2 == entries.length) {
+                        entries = Arrays.copyOf(entries, entries.length * 2);
+                    }
+                    entries[count * 2] = maxTime;
+                    entries[count * 2 + 1] = offset;
+                    count++;
+                    lastOffset = offset;
+                }
+            }
+        }
+        return Arrays.copyOf(entries, count * 2);
+    }
+
+}
@@ -0,0 +1,141 @@
+package co.gongzh.servicekit;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Splits a UTF-8 text stream into lines with a single reusable buffer, so
+ * memory use does not depend on the size of the stream. A zero byte at the
+ * start of a line is treated as the end of data, like the unused tail of a
+ * memory-mapped log file.
+ *
+ * @author Gong Zhang
+ */
+final class LogLineReader implements Closeable {
+
+    @NotNull private final InputStream in;
+    @NotNull private byte[] buffer;
+    private int start;
+    private int end;
+    private boolean eof;
+    private int lineFrom;
+    private int lineTo;
+    private long base;
+
+    LogLineReader(@NotNull InputStream in) {
+        this(in, 0);
+    }
+
+    /**
+     * @param position the offset of the first byte of <code>in</code> in the file
+     */
+    LogLineReader(@NotNull InputStream in, long position) {
+        this.in = in;
+        this.buffer = new byte[65536];
+        this.base = position;
+    }
+
+    /**
+     * @return the next line without the line break, or {@code null} at the end.
+     */
+    @Nullable
+    String readLine() throws IOException {
+        if (!next()) {
+            return null;
+        }
+        return new String(buffer, lineFrom, lineTo - lineFrom, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Finds the next line without decoding it. The line is
+     * <code>array()[lineFrom(), lineTo())</code>, valid until the next call.
+     * @return {@code false} at the end.
+     */
+    boolean next() throws IOException {
+        int scanned = start;
+        while (true) {
+            if (start < end && buffer[start] == 0) {
+                eof = true;
+                start = end;
+                return false;
+            }
+            for (int i = scanned; i < end; i++) {
+                if (buffer[i] == '\n') {
+                    setLine(start, i);
+                    start = i + 1;
+                    return true;
+                }
+            }
+            if (eof) {
+                if (start == end) {
+                    return false;
+                }
+                setLine(start, end);
+                start = end;
+                return true;
+            }
+            scanned = end - start;
+            fill();
+            scanned += start;
+        }
+    }
+
+    @NotNull
+    byte[] array() {
+        return buffer;
+    }
+
+    int lineFrom() {
+        return lineFrom;
+    }
+
+    int lineTo() {
+        return lineTo;
+    }
+
+    /**
+     * @return the offset of the current line in the stream.
+     */
+    long lineOffset() {
+        return base + lineFrom;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void fill() throws IOException {
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            base += start;
+            end -= start;
+            start = 0;
+        }
+        if (end == buffer.length) {
+            // a line longer than the buffer
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        int n = in.read(buffer, end, buffer.length - end);
+        if (n == -1) {
+            eof = true;
+        } else {
+            end += n;
+        }
+    }
+
+    private void setLine(int from, int to) {
+        if (to > from && buffer[to - 1] == '\r') {
+            to--;
+        }
+        lineFrom = from;
+        lineTo = to;
+    }
+
+}
@@ -3,17 +3,49 @@ package co.gongzh.servicekit;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
 import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.GZIPInputStream;
 
 /**
  * @author Gong Zhang
  */
 public class LogParser {
 
+    static final byte[] GZIP_MAGIC = { (byte) 0x1F, (byte) 0x8B };
+    private static final int MIN_CHUNK_SIZE = 1 << 20;
+    private static final Comparator<Line> TIME_ORDER = Comparator.comparing(l -> l.dateTime, OffsetDateTime.timeLineOrder());
+
     public static class Line {
         public OffsetDateTime dateTime;
         public String timestamp;
@@ -22,6 +54,241 @@ public class LogParser {
         public String message;
     }
 
+    /**
+     * A reusable view of a record in a UTF-8 byte array. The timestamp is
+     * decoded into epoch millis without any allocation; the strings are only
+     * created when asked for. Lets callers filter lines before materializing
+     * them, see {@link #scan(Path, Predicate)}. The getters are valid until
+     * the next {@link #parse(byte[], int, int)}.
+     */
+    public static final class LineView {
+
+        /**
+         * Exposes ASCII bytes as chars to the timestamp parser.
+         */
+        private static final class Ascii implements CharSequence {
+
+            byte[] array;
+
+            @Override
+            public int length() {
+                return array.length;
+            }
+
+            @Override
+            public char charAt(int index) {
+                return (char) (array[index] & 0xFF);
+            }
+
+            @Override
+            public CharSequence subSequence(int start, int end) {
+                throw new UnsupportedOperationException();
+            }
+
+        }
+
+        @NotNull private final LogTimestampParser parser = new LogTimestampParser();
+        @NotNull private final Ascii ascii = new Ascii();
+        private byte[] bytes;
+        private int from;
+        private int timestampTo;
+        private int tagFrom;
+        private int tagTo;
+        private int to;
+        private char level;
+        private long epochMillis;
+        @Nullable private OffsetDateTime dateTime;
+        @Nullable private String timestamp;
+        @Nullable private String tag;
+        @Nullable private String message;
+
+        /**
+         * Points the view at the line <code>bytes[from, to)</code>.
+         * @return {@code false} if the line is not a record.
+         */
+        public boolean parse(@NotNull byte[] bytes, int from, int to) {
+            return locate(bytes, from, to) && decodeTime();
+        }
+
+        /**
+         * Finds the fields of the line without decoding the timestamp, so
+         * level and tag can be checked first. Call {@link #decodeTime()}
+         * before using the time.
+         */
+        boolean locate(@NotNull byte[] bytes, int from, int to) {
+            this.bytes = bytes;
+            this.from = from;
+            this.to = to;
+            dateTime = null;
+            timestamp = null;
+            tag = null;
+            message = null;
+
+            // "%s  %c  %s \t%s"
+            int i = indexOf(bytes, from, to, (byte) ' ', (byte) ' ');
+            if (i == -1) {
+                return false;
+            }
+            timestampTo = i;
+
+            int p = i + 2;
+            if (to - p < 3) {
+                return false;
+            }
+            level = (char) bytes[p];
+            if (level != 'i' && level != 'w' && level != 'e') {
+                return false;
+            }
+            if (bytes[p + 1] != ' ' || bytes[p + 2] != ' ') {
+                return false;
+            }
+            tagFrom = p + 3;
+            tagTo = indexOf(bytes, tagFrom, to, (byte) ' ', (byte) '\t');
+            return tagTo != -1;
+        }
+
+        /**
+         * @return {@code false} if the timestamp is not valid.
+         */
+        boolean decodeTime() {
+            ascii.array = bytes;
+            if (parser.parse(ascii, from, timestampTo)) {
+                epochMillis = parser.getEpochMillis();
+                return true;
+            }
+            try {
+                dateTime = OffsetDateTime.parse(getTimestamp());
+            } catch (DateTimeParseException ex) {
+                return false;
+            }
+            epochMillis = dateTime.toInstant().toEpochMilli();
+            return true;
+        }
+
+        /**
+         * @param tags UTF-8 encoded tags
+         */
+        boolean tagIn(@NotNull byte[][] tags) {
+            int length = tagTo - tagFrom;
+            for (byte[] tag : tags) {
+                if (tag.length == length && regionEquals(bytes, tagFrom, tag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @param text UTF-8 encoded, not empty
+         */
+        boolean messageContains(@NotNull byte[] text) {
+            byte first = text[0];
+            for (int i = tagTo + 2, last = to - text.length; i <= last; i++) {
+                if (bytes[i] == first && regionEquals(bytes, i, text)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static boolean regionEquals(@NotNull byte[] bytes, int from, @NotNull byte[] other) {
+            for (int i = 0; i < other.length; i++) {
+                if (bytes[from + i] != other[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public long getEpochMillis() {
+            return epochMillis;
+        }
+
+        public char getLevel() {
+            return level;
+        }
+
+        @NotNull
+        public OffsetDateTime getDateTime() {
+            if (dateTime == null) {
+                dateTime = parser.toDateTime();
+            }
+            return dateTime;
+        }
+
+        @NotNull
+        public String getTimestamp() {
+            if (timestamp == null) {
+                timestamp = new String(bytes, from, timestampTo - from, StandardCharsets.UTF_8);
+            }
+            return timestamp;
+        }
+
+        @NotNull
+        public String getTag() {
+            if (tag == null) {
+                tag = new String(bytes, tagFrom, tagTo - tagFrom, StandardCharsets.UTF_8);
+            }
+            return tag;
+        }
+
+        /**
+         * Same as <code>getTag().equals(tag)</code>, usually without creating the string.
+         */
+        public boolean tagEquals(@NotNull String tag) {
+            if (this.tag != null) {
+                return this.tag.equals(tag);
+            }
+            int length = tag.length();
+            if (length != tagTo - tagFrom) {
+                // may still be equal if the tag is not ASCII
+                return length < tagTo - tagFrom && getTag().equals(tag);
+            }
+            for (int i = 0; i < length; i++) {
+                char c = tag.charAt(i);
+                if (c >= 0x80) {
+                    return getTag().equals(tag);
+                }
+                if (bytes[tagFrom + i] != c) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @NotNull
+        public String getMessage() {
+            if (message == null) {
+                int messageFrom = tagTo + 2;
+                message = new String(bytes, messageFrom, to - messageFrom, StandardCharsets.UTF_8);
+            }
+            return message;
+        }
+
+        @NotNull
+        public Line toLine() {
+            Line line = new Line();
+            line.dateTime = getDateTime();
+            line.timestamp = getTimestamp();
+            line.level = level;
+            line.tag = getTag();
+            line.message = getMessage();
+            return line;
+        }
+
+        private static int indexOf(@NotNull byte[] bytes, int from, int to, byte first, byte second) {
+            for (int i = from; i + 1 < to; i++) {
+                if (bytes[i] == first && bytes[i + 1] == second) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+    }
+
+    private static final ThreadLocal<LogTimestampParser> timestampParser = ThreadLocal.withInitial(LogTimestampParser::new);
+
     @NotNull
     public static List<Line> parse(String log) {
         String[] lines = log.split("\n");
@@ -31,6 +298,318 @@ public class LogParser {
                 .collect(Collectors.toList());
     }
 
+    /**
+     * Returns the records of a log file without loading the file into memory.
+     * See {@link #stream(List)}.
+     */
+    @NotNull
+    public static Stream<Line> stream(@NotNull Path file) {
+        return stream(Collections.singletonList(file));
+    }
+
+    /**
+     * Returns the records of several log files, e.g. the archives of a
+     * {@link RotatingLogFileResolver} followed by the current file, in the
+     * given order. Files are opened one at a time when the stream reaches
+     * them and read through a fixed size buffer, so memory use does not
+     * depend on the size of the files. Gzip-compressed and
+     * {@link LogConfig.Format#BINARY} files are detected by their magic
+     * bytes. Lines that are not records are skipped.
+     * <p>
+     * Close the stream to close the current file. I/O errors are thrown as
+     * {@link UncheckedIOException} by the stream operations.
+     */
+    @NotNull
+    public static Stream<Line> stream(@NotNull List<Path> files) {
+        LineIterator iterator = new LineIterator(files);
+        Spliterator<Line> spliterator = Spliterators.spliteratorUnknownSize(iterator,
+                Spliterator.ORDERED | Spliterator.NONNULL);
+        return StreamSupport.stream(spliterator, false).onClose(iterator::close);
+    }
+
+    /**
+     * Returns the records of a log file with timestamps in
+     * <code>[from, to)</code>. For a text file, reading starts at the
+     * position found by a binary search in the time index next to the file
+     * (see {@link LogConfig#setIndexRecords}); if the file has no index, one
+     * is built in memory by a single pass over the file. Only the log writer
+     * writes index files.
+     * Reading stops one second after <code>to</code>, since records can be
+     * written slightly out of timestamp order. Gzip-compressed and binary
+     * files cannot seek and are filtered from the start.
+     */
+    @NotNull
+    public static Stream<Line> stream(@NotNull Path file, @NotNull Instant from, @NotNull Instant to) throws IOException {
+        long fromMillis = from.toEpochMilli();
+        long toMillis = to.toEpochMilli();
+        long stopMillis = toMillis < Long.MAX_VALUE - LogIndex.MAX_SKEW_MILLIS ?
+                toMillis + LogIndex.MAX_SKEW_MILLIS : Long.MAX_VALUE;
+        byte[] magic;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            magic = readMagic(channel);
+        }
+        if (startsWith(magic, GZIP_MAGIC) || startsWith(magic, BinaryLogEncoder.MAGIC)) {
+            return stream(file).filter(line -> {
+                long time = line.dateTime.toInstant().toEpochMilli();
+                return time >= fromMillis && time < toMillis;
+            });
+        }
+
+        long offset = LogIndex.seek(file, fromMillis);
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        LogLineReader reader;
+        try {
+            channel.position(offset);
+            reader = new LogLineReader(Channels.newInputStream(channel), offset);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        LineView view = new LineView();
+        Spliterator<Line> spliterator = new Spliterators.AbstractSpliterator<Line>(Long.MAX_VALUE,
+                Spliterator.ORDERED | Spliterator.NONNULL) {
+            private boolean done;
+
+            @Override
+            public boolean tryAdvance(Consumer<? super Line> action) {
+                try {
+                    while (!done && reader.next()) {
+                        if (!view.parse(reader.array(), reader.lineFrom(), reader.lineTo())) {
+                            continue;
+                        }
+                        long time = view.getEpochMillis();
+                        if (time >= stopMillis) {
+                            break;
+                        }
+                        if (time >= fromMillis && time < toMillis) {
+                            action.accept(view.toLine());
+                            return true;
+                        }
+                    }
+                    done = true;
+                    return false;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+        return StreamSupport.stream(spliterator, false).onClose(() -> {
+            try {
+                reader.close();
+            } catch (IOException ignored) {
+            }
+        });
+    }
+
+    /**
+     * Parses a log file in parallel on the common pool, see
+     * {@link #parseParallel(Path, ForkJoinPool)}.
+     */
+    @NotNull
+    public static List<Line> parseParallel(@NotNull Path file) throws IOException {
+        return parseParallel(file, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Parses a text log file in parallel. The file is split into byte ranges
+     * that end on line breaks; the ranges are read with positional reads on
+     * a shared channel and parsed on <code>pool</code>, and the results are merged in timestamp order.
+     * Records with the same timestamp keep their order in the file.
+     * Gzip-compressed and binary files are parsed sequentially, then sorted.
+     */
+    @NotNull
+    public static List<Line> parseParallel(@NotNull Path file, @NotNull ForkJoinPool pool) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            byte[] magic = readMagic(channel);
+            if (startsWith(magic, GZIP_MAGIC) || startsWith(magic, BinaryLogEncoder.MAGIC)) {
+                List<Line> lines;
+                try (Stream<Line> stream = stream(file)) {
+                    lines = stream.collect(Collectors.toList());
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                lines.sort(TIME_ORDER);
+                return lines;
+            }
+
+            long size = channel.size();
+            long chunkSize = Math.max(MIN_CHUNK_SIZE, size / (pool.getParallelism() * 4L));
+            chunkSize = Math.min(chunkSize, Integer.MAX_VALUE - 65536);
+            List<long[]> ranges = new ArrayList<>();
+            long start = 0;
+            while (start < size) {
+                long end = start + chunkSize >= size ? size : lineEnd(channel, start + chunkSize, size);
+                ranges.add(new long[] { start, end });
+                start = end;
+            }
+            if (ranges.isEmpty()) {
+                return new ArrayList<>();
+            }
+            try {
+                return pool.invoke(new ChunkTask(channel, ranges, 0, ranges.size()));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    /**
+     * @return the position after the first line break at or after <code>pos</code>.
+     */
+    private static long lineEnd(@NotNull FileChannel channel, long pos, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        while (pos < size) {
+            buffer.clear();
+            int n = channel.read(buffer, pos);
+            if (n <= 0) {
+                break;
+            }
+            byte[] a = buffer.array();
+            for (int i = 0; i < n; i++) {
+                if (a[i] == '\n') {
+                    return pos + i + 1;
+                }
+            }
+            pos += n;
+        }
+        return size;
+    }
+
+    private static final class ChunkTask extends RecursiveTask<List<Line>> {
+
+        private static final long serialVersionUID = 1L;
+
+        @NotNull private final FileChannel channel;
+        @NotNull private final List<long[]> ranges;
+        private final int from;
+        private final int to;
+
+        ChunkTask(@NotNull FileChannel channel, @NotNull List<long[]> ranges, int from, int to) {
+            this.channel = channel;
+            this.ranges = ranges;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<Line> compute() {
+            if (to - from == 1) {
+                try {
+                    return parseRange(ranges.get(from)[0], ranges.get(from)[1]);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            int mid = (from + to) >>> 1;
+            ChunkTask right = new ChunkTask(channel, ranges, mid, to);
+            right.fork();
+            List<Line> left = new ChunkTask(channel, ranges, from, mid).compute();
+            return merge(left, right.join());
+        }
+
+        @NotNull
+        private List<Line> parseRange(long start, long end) throws IOException {
+            byte[] bytes = new byte[(int) (end - start)];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, start + buffer.position()) == -1) {
+                    break;
+                }
+            }
+            List<Line> lines = new ArrayList<>();
+            int from = 0;
+            while (from < bytes.length && bytes[from] != 0) {
+                int i = from;
+                while (i < bytes.length && bytes[i] != '\n') {
+                    i++;
+                }
+                int to = i > from && bytes[i - 1] == '\r' ? i - 1 : i;
+                Line line = parseLine(new String(bytes, from, to - from, StandardCharsets.UTF_8));
+                if (line != null) {
+                    lines.add(line);
+                }
+                from = i + 1;
+            }
+            lines.sort(TIME_ORDER);
+            return lines;
+        }
+
+        @NotNull
+        private static List<Line> merge(@NotNull List<Line> left, @NotNull List<Line> right) {
+            if (left.isEmpty()) {
+                return right;
+            }
+            if (right.isEmpty()) {
+                return left;
+            }
+            if (TIME_ORDER.compare(left.get(left.size() - 1), right.get(0)) <= 0) {
+                // the usual case: the ranges do not overlap
+                left.addAll(right);
+                return left;
+            }
+            List<Line> merged = new ArrayList<>(left.size() + right.size());
+            int i = 0;
+            int j = 0;
+            while (i < left.size() && j < right.size()) {
+                if (TIME_ORDER.compare(right.get(j), left.get(i)) < 0) {
+                    merged.add(right.get(j++));
+                } else {
+                    merged.add(left.get(i++));
+                }
+            }
+            merged.addAll(left.subList(i, left.size()));
+            merged.addAll(right.subList(j, right.size()));
+            return merged;
+        }
+
+    }
+
+    @NotNull
+    private static byte[] readMagic(@NotNull FileChannel channel) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(4);
+        while (head.hasRemaining() && channel.read(head, head.position()) != -1) {
+            // read the magic bytes
+        }
+        return Arrays.copyOf(head.array(), head.position());
+    }
+
+    private static boolean startsWith(@NotNull byte[] bytes, @NotNull byte[] magic) {
+        if (bytes.length < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (bytes[i] != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads all records of a log written with {@link LogConfig.Format#BINARY}.
+     */
+    @NotNull
+    public static List<Line> parseBinary(@NotNull InputStream in) throws IOException {
+        return new BinaryLogReader(in).readAll();
+    }
+
+    /**
+     * Converts a log written with {@link LogConfig.Format#BINARY} to the text format.
+     */
+    public static void convertBinaryToText(@NotNull InputStream in, @NotNull OutputStream out) throws IOException {
+        BinaryLogReader reader = new BinaryLogReader(in);
+        StringBuilder text = new StringBuilder();
+        Line line;
+        while ((line = reader.next()) != null) {
+            // "%s  %c  %s \t%s\n"
+            text.setLength(0);
+            text.append(line.timestamp).append("  ").append(line.level).append("  ")
+                    .append(line.tag).append(" \t").append(line.message).append('\n');
+            out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        out.flush();
+    }
+
     @Nullable
     public static Line parseLine(@NotNull String line) {
         Line result = new Line();
@@ -41,36 +620,213 @@ public class LogParser {
         if (i == -1) {
             return null;
         }
-        try {
-            result.timestamp = line.substring(0, i);
-            result.dateTime = OffsetDateTime.parse(result.timestamp);
-        } catch (java.time.format.DateTimeParseException ex) {
-            return null;
+        LogTimestampParser parser = timestampParser.get();
+        if (parser.parse(line, 0, i)) {
+            result.dateTime = parser.toDateTime();
+        } else {
+            try {
+                result.dateTime = OffsetDateTime.parse(line.substring(0, i));
+            } catch (DateTimeParseException ex) {
+                return null;
+            }
         }
 
         // level
-        line = line.substring(i + 2);
-        if (line.length() < 3) {
+        int p = i + 2;
+        if (line.length() - p < 3) {
             return null;
         }
-        result.level = line.charAt(0);
+        result.level = line.charAt(p);
         if (result.level != 'i' && result.level != 'w' && result.level != 'e') {
             return null;
         }
-        if (line.charAt(1) != ' ' || line.charAt(2) != ' ') {
+        if (line.charAt(p + 1) != ' ' || line.charAt(p + 2) != ' ') {
             return null;
         }
 
         // tag
-        line = line.substring(3);
-        i = line.indexOf(" \t");
-        if (i == -1) {
+        int j = line.indexOf(" \t", p + 3);
+        if (j == -1) {
             return null;
         }
-        result.tag = line.substring(0, i);
-        result.message = line.substring(i + 2);
+        result.timestamp = line.substring(0, i);
+        result.tag = line.substring(p + 3, j);
+        result.message = line.substring(j + 2);
 
         return result;
     }
 
+    /**
+     * Visits the records of a text log file, plain or gzip-compressed, with
+     * a single reusable view. Nothing but the view is allocated per line
+     * unless the visitor asks for strings.
+     * @param visitor returns {@code false} to stop
+     * @throws IOException also if the file is a binary log.
+     */
+    public static void scan(@NotNull Path file, @NotNull Predicate<LineView> visitor) throws IOException {
+        try (InputStream in = openInput(file)) {
+            if (startsWith(in, BinaryLogEncoder.MAGIC)) {
+                throw new IOException("not a text log: " + file);
+            }
+            LogLineReader reader = new LogLineReader(in);
+            LineView view = new LineView();
+            while (reader.next()) {
+                if (view.parse(reader.array(), reader.lineFrom(), reader.lineTo()) && !visitor.test(view)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private static final class LineIterator implements Iterator<Line> {
+
+        @NotNull private final Iterator<Path> files;
+        @Nullable private Closeable source;
+        @Nullable private LogLineReader textReader;
+        @Nullable private BinaryLogReader binaryReader;
+        @Nullable private Line next;
+
+        LineIterator(@NotNull List<Path> files) {
+            this.files = files.iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                try {
+                    next = advance();
+                } catch (IOException e) {
+                    close();
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Line next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Line line = next;
+            next = null;
+            return line;
+        }
+
+        @Nullable
+        private Line advance() throws IOException {
+            while (true) {
+                if (source == null) {
+                    if (!files.hasNext()) {
+                        return null;
+                    }
+                    open(files.next());
+                }
+                if (binaryReader != null) {
+                    Line line = binaryReader.next();
+                    if (line != null) {
+                        return line;
+                    }
+                } else {
+                    assert textReader != null;
+                    String text;
+                    while ((text = textReader.readLine()) != null) {
+                        Line line = parseLine(text);
+                        if (line != null) {
+                            return line;
+                        }
+                    }
+                }
+                close();
+            }
+        }
+
+        private void open(@NotNull Path file) throws IOException {
+            source = openReader(file, Long.MIN_VALUE);
+            if (source instanceof BinaryLogReader) {
+                binaryReader = (BinaryLogReader) source;
+            } else {
+                textReader = (LogLineReader) source;
+            }
+        }
+
+        void close() {
+            if (source != null) {
+                try {
+                    source.close();
+                } catch (IOException ignored) {
+                }
+                source = null;
+                textReader = null;
+                binaryReader = null;
+            }
+        }
+
+    }
+
+    /**
+     * Opens a file for reading, decompressing it if it is gzip-compressed.
+     * @return a stream that supports {@link InputStream#mark}.
+     */
+    @NotNull
+    private static InputStream openInput(@NotNull Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        InputStream in = new BufferedInputStream(Channels.newInputStream(channel), 65536);
+        try {
+            if (startsWith(in, GZIP_MAGIC)) {
+                in = new BufferedInputStream(new GZIPInputStream(in, 65536), 65536);
+            }
+            return in;
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a log file for reading, decompressing it if it is
+     * gzip-compressed. A plain text file is positioned with
+     * {@link LogIndex#seek} at the records from <code>fromMillis</code> on,
+     * unless that is {@link Long#MIN_VALUE}.
+     * @return a {@link BinaryLogReader} or a {@link LogLineReader}.
+     */
+    @NotNull
+    static Closeable openReader(@NotNull Path file, long fromMillis) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        InputStream in = new BufferedInputStream(Channels.newInputStream(channel), 65536);
+        try {
+            boolean compressed = startsWith(in, GZIP_MAGIC);
+            if (compressed) {
+                in = new BufferedInputStream(new GZIPInputStream(in, 65536), 65536);
+            }
+            if (startsWith(in, BinaryLogEncoder.MAGIC)) {
+                return new BinaryLogReader(in);
+            }
+            if (compressed || fromMillis == Long.MIN_VALUE) {
+                return new LogLineReader(in);
+            }
+            // drop the buffered bytes and read on from the indexed position
+            long position = LogIndex.seek(file, fromMillis);
+            channel.position(position);
+            return new LogLineReader(Channels.newInputStream(channel), position);
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    static boolean startsWith(@NotNull InputStream in, @NotNull byte[] magic) throws IOException {
+        in.mark(magic.length);
+        try {
+            for (byte b : magic) {
+                if (in.read() != (b & 0xFF)) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            in.reset();
+        }
+    }
+
 }
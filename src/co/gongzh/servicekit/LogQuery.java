@@ -0,0 +1,334 @@
+package co.gongzh.servicekit;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Finds log records by level, tag, time range and message, for example:
+ * <pre>
+ * new LogQuery().level('w').tags("Net").contains("timeout").limit(100).run(resolver)
+ * </pre>
+ * For text files the level, tag and substring conditions are checked on the
+ * raw bytes of a line; the timestamp is only decoded, and strings are only
+ * created, for lines that pass them. A time range seeks with the index of
+ * a file, see {@link LogParser#stream(Path, Instant, Instant)}, and skips
+ * files that were last modified before the range.
+ *
+ * @author Gong Zhang
+ */
+public final class LogQuery {
+
+    private static final int TIME_CHECK_INTERVAL = 256;
+
+    private int minLevel = 0;
+    @Nullable private Set<String> tags;
+    @Nullable private byte[][] tagBytes;
+    private long fromMillis = Long.MIN_VALUE;
+    private long toMillis = Long.MAX_VALUE;
+    private long stopMillis = Long.MAX_VALUE;
+    @Nullable private String substring;
+    @Nullable private byte[] substringBytes;
+    @Nullable private Pattern pattern;
+    private long offset = 0;
+    private long limit = Long.MAX_VALUE;
+
+    /**
+     * Only records of <code>level</code> or above.
+     */
+    @NotNull
+    public LogQuery level(char level) {
+        this.minLevel = Log.levelRank(level);
+        return this;
+    }
+
+    /**
+     * Only records with one of these tags.
+     */
+    @NotNull
+    public LogQuery tags(@NotNull String... tags) {
+        return tags(Arrays.asList(tags));
+    }
+
+    @NotNull
+    public LogQuery tags(@NotNull Collection<String> tags) {
+        this.tags = new LinkedHashSet<>(tags);
+        this.tagBytes = new byte[this.tags.size()][];
+        int i = 0;
+        for (String tag : this.tags) {
+            tagBytes[i++] = tag.getBytes(StandardCharsets.UTF_8);
+        }
+        return this;
+    }
+
+    /**
+     * Only records in <code>[from, to)</code>. Either bound may be {@code null}.
+     */
+    @NotNull
+    public LogQuery between(@Nullable Instant from, @Nullable Instant to) {
+        this.fromMillis = from != null ? from.toEpochMilli() : Long.MIN_VALUE;
+        this.toMillis = to != null ? to.toEpochMilli() : Long.MAX_VALUE;
+        // records may be slightly out of order, so read a bit past the range
+        this.stopMillis = toMillis < Long.MAX_VALUE - LogIndex.MAX_SKEW_MILLIS ?
+                toMillis + LogIndex.MAX_SKEW_MILLIS : Long.MAX_VALUE;
+        return this;
+    }
+
+    /**
+     * Only records whose message contains <code>text</code>.
+     */
+    @NotNull
+    public LogQuery contains(@NotNull String text) {
+        this.substring = text.isEmpty() ? null : text;
+        this.substringBytes = text.isEmpty() ? null : text.getBytes(StandardCharsets.UTF_8);
+        return this;
+    }
+
+    /**
+     * Only records whose message contains a match of <code>regex</code>.
+     */
+    @NotNull
+    public LogQuery matches(@NotNull String regex) {
+        return matches(Pattern.compile(regex));
+    }
+
+    @NotNull
+    public LogQuery matches(@NotNull Pattern pattern) {
+        this.pattern = pattern;
+        return this;
+    }
+
+    /**
+     * Skips the first <code>offset</code> matching records.
+     */
+    @NotNull
+    public LogQuery offset(long offset) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset must not be negative");
+        }
+        this.offset = offset;
+        return this;
+    }
+
+    /**
+     * Returns at most <code>limit</code> records.
+     */
+    @NotNull
+    public LogQuery limit(long limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must not be negative");
+        }
+        this.limit = limit;
+        return this;
+    }
+
+    /**
+     * Runs the query over all files of <code>resolver</code>, see
+     * {@link LogFileResolver#getLogFiles()}.
+     */
+    @NotNull
+    public Stream<LogParser.Line> run(@NotNull LogFileResolver resolver) {
+        List<Path> files = new ArrayList<>();
+        for (File file : resolver.getLogFiles()) {
+            files.add(file.toPath());
+        }
+        return run(files);
+    }
+
+    /**
+     * Runs the query over <code>files</code> in the given order. The
+     * records are read lazily as the stream is consumed; close the stream
+     * to close the current file. Files that no longer exist are skipped.
+     * I/O errors are thrown as {@link UncheckedIOException}. Do not change
+     * the query while the stream is in use.
+     */
+    @NotNull
+    public Stream<LogParser.Line> run(@NotNull List<Path> files) {
+        Results results = new Results(new ArrayList<>(files).iterator());
+        Stream<LogParser.Line> stream = StreamSupport.stream(results, false).onClose(results::close);
+        if (offset > 0) {
+            stream = stream.skip(offset);
+        }
+        if (limit != Long.MAX_VALUE) {
+            stream = stream.limit(limit);
+        }
+        return stream;
+    }
+
+    private boolean matches(@NotNull LogParser.Line line) {
+        if (Log.levelRank(line.level) < minLevel) {
+            return false;
+        }
+        if (tags != null && !tags.contains(line.tag)) {
+            return false;
+        }
+        long time = line.dateTime.toInstant().toEpochMilli();
+        if (time < fromMillis || time >= toMillis) {
+            return false;
+        }
+        if (substring != null && !line.message.contains(substring)) {
+            return false;
+        }
+        return pattern == null || pattern.matcher(line.message).find();
+    }
+
+    private final class Results extends Spliterators.AbstractSpliterator<LogParser.Line> {
+
+        @NotNull private final Iterator<Path> files;
+        @NotNull private final LogParser.LineView view = new LogParser.LineView();
+        @Nullable private Closeable source;
+        @Nullable private LogLineReader textReader;
+        @Nullable private BinaryLogReader binaryReader;
+        private int skipped;
+
+        Results(@NotNull Iterator<Path> files) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            this.files = files;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super LogParser.Line> action) {
+            try {
+                LogParser.Line line = advance();
+                if (line == null) {
+                    close();
+                    return false;
+                }
+                action.accept(line);
+                return true;
+            } catch (IOException e) {
+                close();
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Nullable
+        private LogParser.Line advance() throws IOException {
+            while (true) {
+                if (source == null) {
+                    if (!files.hasNext()) {
+                        return null;
+                    }
+                    if (!open(files.next())) {
+                        continue;
+                    }
+                }
+                LogParser.Line line = binaryReader != null ? nextBinary() : nextText();
+                if (line != null) {
+                    return line;
+                }
+                close();
+            }
+        }
+
+        @Nullable
+        private LogParser.Line nextBinary() throws IOException {
+            assert binaryReader != null;
+            LogParser.Line line;
+            while ((line = binaryReader.next()) != null) {
+                if (matches(line)) {
+                    return line;
+                }
+            }
+            return null;
+        }
+
+        @Nullable
+        private LogParser.Line nextText() throws IOException {
+            assert textReader != null;
+            LogParser.LineView view = this.view;
+            while (textReader.next()) {
+                if (!view.locate(textReader.array(), textReader.lineFrom(), textReader.lineTo())) {
+                    continue;
+                }
+                // cheap checks on the raw bytes first
+                if (Log.levelRank(view.getLevel()) < minLevel ||
+                        (tagBytes != null && !view.tagIn(tagBytes)) ||
+                        (substringBytes != null && !view.messageContains(substringBytes))) {
+                    if (toMillis != Long.MAX_VALUE && ++skipped >= TIME_CHECK_INTERVAL) {
+                        // now and then, check whether the range has been passed
+                        skipped = 0;
+                        if (view.decodeTime() && view.getEpochMillis() >= stopMillis) {
+                            return null;
+                        }
+                    }
+                    continue;
+                }
+                if (!view.decodeTime()) {
+                    continue;
+                }
+                long time = view.getEpochMillis();
+                if (time >= stopMillis) {
+                    return null;
+                }
+                if (time < fromMillis || time >= toMillis) {
+                    continue;
+                }
+                if (pattern != null && !pattern.matcher(view.getMessage()).find()) {
+                    continue;
+                }
+                return view.toLine();
+            }
+            return null;
+        }
+
+        /**
+         * @return {@code false} if the file can be skipped.
+         */
+        private boolean open(@NotNull Path file) throws IOException {
+            File f = file.toFile();
+            long modified = f.lastModified();
+            if (fromMillis != Long.MIN_VALUE && modified > 0 && modified < fromMillis - LogIndex.MAX_SKEW_MILLIS) {
+                // every record of the file is older than the range
+                return false;
+            }
+            try {
+                source = LogParser.openReader(file, fromMillis);
+            } catch (NoSuchFileException e) {
+                return false;
+            }
+            if (source instanceof BinaryLogReader) {
+                binaryReader = (BinaryLogReader) source;
+            } else {
+                textReader = (LogLineReader) source;
+            }
+            skipped = 0;
+            return true;
+        }
+
+        void close() {
+            if (source != null) {
+                try {
+                    source.close();
+                } catch (IOException ignored) {
+                }
+                source = null;
+                textReader = null;
+                binaryReader = null;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,197 @@
+package co.gongzh.servicekit;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-tag and per-level rate limits plus sampling of info records, checked
+ * on the calling thread before a record is queued.
+ * <p>
+ * Every limit is a token bucket kept as a single theoretical arrival time
+ * (the generic cell rate algorithm), so a permit costs one CAS and no lock.
+ * The tables are copy-on-write and only replaced by the setters.
+ *
+ * @author Gong Zhang
+ */
+final class LogRateLimiter {
+
+    @FunctionalInterface
+    interface SummaryHandler {
+        void onSummary(@NotNull String message);
+    }
+
+    private static final class Bucket {
+
+        @NotNull final String tag;
+        final char level;
+        final long interval;
+        final long tolerance;
+        @NotNull final AtomicLong arrival;
+        @NotNull final Counter suppressed;
+
+        Bucket(@NotNull String tag, char level, double permitsPerSecond, int burst) {
+            this.tag = tag;
+            this.level = level;
+            this.interval = Math.max(1L, (long) (1_000_000_000L / permitsPerSecond));
+            this.tolerance = interval * (burst - 1);
+            this.arrival = new AtomicLong(System.nanoTime());
+            this.suppressed = new Counter();
+        }
+
+        boolean tryAcquire() {
+            long now = System.nanoTime();
+            while (true) {
+                long current = arrival.get();
+                long start = current - now > 0 ? current : now;
+                if (start - now > tolerance) {
+                    suppressed.increment();
+                    return false;
+                }
+                if (arrival.compareAndSet(current, start + interval)) {
+                    return true;
+                }
+            }
+        }
+
+    }
+
+    /**
+     * A contention-friendly counter that can be reported by several writers
+     * without reporting the same records twice.
+     */
+    private static final class Counter {
+
+        @NotNull final LongAdder total = new LongAdder();
+        @NotNull final AtomicLong reported = new AtomicLong();
+
+        void increment() {
+            total.increment();
+        }
+
+        long takeUnreported() {
+            while (true) {
+                long sum = total.sum();
+                long prev = reported.get();
+                if (sum <= prev) {
+                    return 0;
+                }
+                if (reported.compareAndSet(prev, sum)) {
+                    return sum - prev;
+                }
+            }
+        }
+
+    }
+
+    @NotNull private volatile Map<String, Bucket[]> buckets = Collections.emptyMap();
+    private volatile double infoSampleRate = 1.0;
+    @NotNull private final Counter sampled = new Counter();
+    @NotNull private final Queue<Bucket> retired = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @return {@code false} if the record exceeds its rate limit or is not sampled.
+     */
+    boolean admit(@NotNull String tag, char level) {
+        if (level == 'i') {
+            double rate = infoSampleRate;
+            if (rate < 1.0 && ThreadLocalRandom.current().nextDouble() >= rate) {
+                sampled.increment();
+                return false;
+            }
+        }
+        Map<String, Bucket[]> buckets = this.buckets;
+        if (!buckets.isEmpty()) {
+            Bucket[] levels = buckets.get(tag);
+            if (levels != null) {
+                Bucket bucket = levels[Log.levelRank(level)];
+                if (bucket != null) {
+                    return bucket.tryAcquire();
+                }
+            }
+        }
+        return true;
+    }
+
+    synchronized void setLimit(@NotNull String tag, char level, double permitsPerSecond, int burst) {
+        if (!(permitsPerSecond > 0) || burst < 1) {
+            throw new IllegalArgumentException("rate and burst must be positive");
+        }
+        Map<String, Bucket[]> map = new HashMap<>(buckets);
+        Bucket[] levels = map.get(tag);
+        levels = levels == null ? new Bucket[3] : levels.clone();
+        int rank = Log.levelRank(level);
+        if (levels[rank] != null) {
+            retired.add(levels[rank]);
+        }
+        levels[rank] = new Bucket(tag, level, permitsPerSecond, burst);
+        map.put(tag, levels);
+        buckets = map;
+    }
+
+    synchronized void removeLimit(@NotNull String tag, char level) {
+        Bucket[] levels = buckets.get(tag);
+        int rank = Log.levelRank(level);
+        if (levels == null || levels[rank] == null) {
+            return;
+        }
+        // the counts of a removed limit are still reported once
+        retired.add(levels[rank]);
+        Map<String, Bucket[]> map = new HashMap<>(buckets);
+        levels = levels.clone();
+        levels[rank] = null;
+        if (levels[0] == null && levels[1] == null && levels[2] == null) {
+            map.remove(tag);
+        } else {
+            map.put(tag, levels);
+        }
+        buckets = map.isEmpty() ? Collections.emptyMap() : map;
+    }
+
+    double getInfoSampleRate() {
+        return infoSampleRate;
+    }
+
+    void setInfoSampleRate(double rate) {
+        if (!(rate >= 0 && rate <= 1)) {
+            throw new IllegalArgumentException("sample rate must be in [0, 1]");
+        }
+        infoSampleRate = rate;
+    }
+
+    /**
+     * Reports the records suppressed since the last report.
+     */
+    void report(@NotNull SummaryHandler handler) {
+        Bucket bucket;
+        while ((bucket = retired.poll()) != null) {
+            report(bucket, handler);
+        }
+        for (Bucket[] levels : buckets.values()) {
+            for (Bucket b : levels) {
+                if (b != null) {
+                    report(b, handler);
+                }
+            }
+        }
+        long count = sampled.takeUnreported();
+        if (count > 0) {
+            handler.onSummary(count + " info records skipped by sampling");
+        }
+    }
+
+    private static void report(@NotNull Bucket bucket, @NotNull SummaryHandler handler) {
+        long count = bucket.suppressed.takeUnreported();
+        if (count > 0) {
+            handler.onSummary(count + " records of " + bucket.tag + " (" + bucket.level + ") suppressed by rate limit");
+        }
+    }
+
+}
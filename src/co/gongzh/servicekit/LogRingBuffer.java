@@ -0,0 +1,139 @@
+package co.gongzh.servicekit;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded multi-producer/single-consumer queue of reusable log records.
+ * <p>
+ * Every slot carries a sequence number. A producer owns position
+ * <code>p</code> once it wins the CAS on <code>tail</code> while the slot's
+ * sequence equals <code>p</code>; it publishes by setting the sequence to
+ * <code>p + 1</code>. The consumer releases the slot for the next lap by
+ * setting the sequence to <code>p + capacity</code>. No lock is taken on
+ * either side.
+ * <p>
+ * To shut down, the consumer calls {@link #close()} and drains until
+ * {@link #size()} is <code>0</code>. A producer checks {@link #isClosed()}
+ * after claiming; if it is closed, the consumer may have stopped already, so
+ * the producer publishes the slot empty instead of filling it.
+ *
+ * @author Gong Zhang
+ */
+final class LogRingBuffer {
+
+    static final class Slot {
+
+        volatile long sequence;
+        long position;
+
+        long time;
+        char level;
+        String tag;
+        String message;
+        Exception exception;
+        LogFields fields;
+        boolean hasFields;
+
+        Slot(long sequence) {
+            this.sequence = sequence;
+        }
+
+        void clear() {
+            tag = null;
+            message = null;
+            exception = null;
+            if (hasFields) {
+                fields.clear();
+                hasFields = false;
+            }
+        }
+
+    }
+
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+    private volatile boolean closed;
+
+    LogRingBuffer(int size) {
+        int capacity = Integer.highestOneBit(Math.max(size, 2) - 1) << 1;
+        this.slots = new Slot[capacity];
+        this.mask = capacity - 1;
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot(i);
+        }
+    }
+
+    int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * Claims a slot for writing. Called by producers.
+     * @return the claimed slot, or {@code null} if the buffer is full.
+     */
+    @Nullable
+    Slot claim() {
+        long pos = tail.get();
+        while (true) {
+            Slot slot = slots[(int) pos & mask];
+            long diff = slot.sequence - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    slot.position = pos;
+                    return slot;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                return null;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    void publish(Slot slot) {
+        slot.sequence = slot.position + 1;
+    }
+
+    /**
+     * Returns the next published slot. Called by the consumer only.
+     * @return the slot, or {@code null} if nothing is published yet.
+     */
+    @Nullable
+    Slot peek() {
+        long h = head;
+        Slot slot = slots[(int) h & mask];
+        return slot.sequence == h + 1 ? slot : null;
+    }
+
+    /**
+     * Returns the slot obtained by {@link #peek()} to producers.
+     * Called by the consumer only.
+     */
+    void release(Slot slot) {
+        slot.clear();
+        long h = head;
+        slot.sequence = h + slots.length;
+        head = h + 1;
+    }
+
+    void close() {
+        closed = true;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return number of claimed slots that the consumer has not released yet.
+     */
+    int size() {
+        return (int) (tail.get() - head);
+    }
+
+}
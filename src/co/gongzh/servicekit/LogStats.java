@@ -0,0 +1,202 @@
+package co.gongzh.servicekit;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+
+/**
+ * Rolling counts of log records per tag and level over the last minute,
+ * five minutes and hour, e.g. to answer "how many errors per tag in the
+ * last 5 minutes" without reading log files.
+ * <p>
+ * Each tag and level has a ring of per-second slots covering five minutes
+ * and a ring of per-minute slots covering an hour. A slot is one long with
+ * the second (or minute) in the high half and the count in the low half,
+ * so counting is a single CAS and a slot left from an earlier lap of the
+ * ring is recognized and reset by the same CAS. The hour window therefore
+ * has a resolution of one minute. Records older than a window are ignored,
+ * which makes it safe to feed records of log files, see
+ * {@link #record(LogParser.Line)}, but only the recent ones are counted.
+ *
+ * @author Gong Zhang
+ */
+public final class LogStats {
+
+    public enum Window {
+
+        MINUTE(60),
+        FIVE_MINUTES(300),
+        HOUR(3600);
+
+        final int seconds;
+
+        Window(int seconds) {
+            this.seconds = seconds;
+        }
+
+        public long getMillis() {
+            return seconds * 1000L;
+        }
+
+    }
+
+    private static final int SECOND_SLOTS = 300;
+    private static final int MINUTE_SLOTS = 60;
+    private static final long COUNT_MASK = 0xFFFF_FFFFL;
+
+    /**
+     * The counts of one tag and level.
+     */
+    private static final class Series {
+
+        @NotNull final AtomicLongArray seconds = new AtomicLongArray(SECOND_SLOTS);
+        @NotNull final AtomicLongArray minutes = new AtomicLongArray(MINUTE_SLOTS);
+
+        void increment(long second) {
+            increment(seconds, second);
+            increment(minutes, second / 60);
+        }
+
+        /**
+         * @param last the last second of the window
+         */
+        long sum(long last, int windowSeconds) {
+            if (windowSeconds <= SECOND_SLOTS) {
+                return sum(seconds, last - windowSeconds + 1, last);
+            }
+            long lastMinute = last / 60;
+            return sum(minutes, lastMinute - windowSeconds / 60 + 1, lastMinute);
+        }
+
+        private static void increment(@NotNull AtomicLongArray slots, long stamp) {
+            int i = (int) (stamp % slots.length());
+            while (true) {
+                long slot = slots.get(i);
+                long slotStamp = slot >>> 32;
+                long next;
+                if (slotStamp == stamp) {
+                    if ((slot & COUNT_MASK) == COUNT_MASK) {
+                        return;
+                    }
+                    next = slot + 1;
+                } else if (slotStamp < stamp) {
+                    next = stamp << 32 | 1;
+                } else {
+                    // too old for this slot
+                    return;
+                }
+                if (slots.compareAndSet(i, slot, next)) {
+                    return;
+                }
+            }
+        }
+
+        private static long sum(@NotNull AtomicLongArray slots, long first, long last) {
+            long sum = 0;
+            for (long stamp = Math.max(first, 0); stamp <= last; stamp++) {
+                long slot = slots.get((int) (stamp % slots.length()));
+                if (slot >>> 32 == stamp) {
+                    sum += slot & COUNT_MASK;
+                }
+            }
+            return sum;
+        }
+
+    }
+
+    @NotNull private final ConcurrentHashMap<String, AtomicReferenceArray<Series>> tags = new ConcurrentHashMap<>();
+    @NotNull private final Function<String, AtomicReferenceArray<Series>> newTag = tag -> new AtomicReferenceArray<>(3);
+    @NotNull private final Series[] totals = { new Series(), new Series(), new Series() };
+
+    /**
+     * Counts a record. Safe to call from any thread.
+     * @param time the time of the record in milliseconds
+     */
+    public void record(long time, char level, @NotNull String tag) {
+        int rank = Log.levelRank(level);
+        long second = Math.floorDiv(time, 1000L);
+        if (second < 0) {
+            return;
+        }
+        AtomicReferenceArray<Series> levels = tags.get(tag);
+        if (levels == null) {
+            levels = tags.computeIfAbsent(tag, newTag);
+        }
+        Series series = levels.get(rank);
+        if (series == null) {
+            levels.compareAndSet(rank, null, new Series());
+            series = levels.get(rank);
+        }
+        series.increment(second);
+        totals[rank].increment(second);
+    }
+
+    /**
+     * Counts a record read from a log file.
+     */
+    public void record(@NotNull LogParser.Line line) {
+        record(line.dateTime.toInstant().toEpochMilli(), line.level, line.tag);
+    }
+
+    /**
+     * @param tag the tag, or {@code null} for all tags
+     * @return the number of records of exactly <code>level</code> in the
+     *         window ending now.
+     */
+    public long count(@Nullable String tag, char level, @NotNull Window window) {
+        return count(tag, level, window, System.currentTimeMillis());
+    }
+
+    /**
+     * Same as {@link #count(String, char, Window)} for the window ending at <code>now</code>.
+     */
+    public long count(@Nullable String tag, char level, @NotNull Window window, long now) {
+        Series series = seriesOf(tag, Log.levelRank(level));
+        return series != null ? series.sum(Math.floorDiv(now, 1000L), window.seconds) : 0;
+    }
+
+    /**
+     * @return records per second of <code>tag</code> and <code>level</code>
+     *         averaged over the window ending now.
+     */
+    public double rate(@Nullable String tag, char level, @NotNull Window window) {
+        return (double) count(tag, level, window) / window.seconds;
+    }
+
+    /**
+     * @return the counts of <code>level</code> in the window ending now for
+     *         every tag that has any, sorted by tag.
+     */
+    @NotNull
+    public Map<String, Long> countsByTag(char level, @NotNull Window window) {
+        int rank = Log.levelRank(level);
+        long last = Math.floorDiv(System.currentTimeMillis(), 1000L);
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<String, AtomicReferenceArray<Series>> entry : tags.entrySet()) {
+            Series series = entry.getValue().get(rank);
+            if (series != null) {
+                long count = series.sum(last, window.seconds);
+                if (count > 0) {
+                    counts.put(entry.getKey(), count);
+                }
+            }
+        }
+        return counts;
+    }
+
+    @Nullable
+    private Series seriesOf(@Nullable String tag, int rank) {
+        if (tag == null) {
+            return totals[rank];
+        }
+        AtomicReferenceArray<Series> levels = tags.get(tag);
+        return levels != null ? levels.get(rank) : null;
+    }
+
+}
@@ -0,0 +1,256 @@
+package co.gongzh.servicekit;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+
+/**
+ * Follows a text log file like <code>tail -f</code> and fires
+ * {@link #onLine} for every record appended to it, so the cost of a poll
+ * depends on the number of new lines, not on the size of the file.
+ * <p>
+ * The file is polled rather than watched, since writes through a
+ * {@link LogConfig.Appender#MEMORY_MAPPED memory-mapped} appender do not produce
+ * file system events. A poll reads the bytes after the last complete line;
+ * an incomplete last line and the zero-filled tail of a mapped file are
+ * read again by the next poll. When the path refers to another file, e.g.
+ * after {@link RotatingLogFileResolver} renamed it, the rest of the old
+ * file is read before the new file is followed from its start. A file
+ * that shrinks is read again from its start.
+ *
+ * @author Gong Zhang
+ */
+public final class LogTailer implements Closeable {
+
+    @NotNull public final EventDispatch<LogParser.Line> onLine = new EventDispatch<>("LogTailer.onLine");
+
+    @Nullable private final Path fixedPath;
+    @Nullable private final LogFileResolver resolver;
+    private final boolean fromStart;
+    @NotNull private final LogParser.LineView view = new LogParser.LineView();
+
+    @Nullable private FileChannel channel;
+    @Nullable private Path path;
+    @Nullable private Object fileKey;
+    private long position;
+    @NotNull private byte[] buffer = new byte[65536];
+    private int length;
+    private boolean skipPartialLine;
+    @Nullable private Thread thread;
+    private volatile boolean closed;
+
+    /**
+     * @param fromStart {@code true} to fire the records already in the file
+     *                  first, {@code false} to start at its current end.
+     */
+    public LogTailer(@NotNull Path file, boolean fromStart) {
+        this.fixedPath = file;
+        this.resolver = null;
+        this.fromStart = fromStart;
+    }
+
+    /**
+     * Follows {@link LogFileResolver#getCurrentLogFile()} of
+     * <code>resolver</code>, which is asked again on every poll.
+     */
+    public LogTailer(@NotNull LogFileResolver resolver, boolean fromStart) {
+        this.fixedPath = null;
+        this.resolver = resolver;
+        this.fromStart = fromStart;
+    }
+
+    /**
+     * Polls on a daemon thread every <code>intervalMillis</code> until
+     * {@link #close()}. Observers are notified on that thread.
+     */
+    public synchronized void start(long intervalMillis) {
+        if (thread != null || closed) {
+            return;
+        }
+        thread = new Thread(() -> {
+            while (!closed) {
+                try {
+                    poll();
+                } catch (IOException e) {
+                    System.err.println("failed to tail log: " + e);
+                }
+                try {
+                    Thread.sleep(intervalMillis);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }, "LogTailer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Reads what was appended since the last poll and fires {@link #onLine}
+     * for each record, on the calling thread.
+     * @return the number of records fired.
+     */
+    public synchronized int poll() throws IOException {
+        if (closed) {
+            return 0;
+        }
+        Path current = resolver != null ? resolver.getCurrentLogFile().toPath() : fixedPath;
+        assert current != null;
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(current, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            attributes = null;
+        }
+
+        int count = 0;
+        if (channel == null) {
+            if (attributes == null) {
+                return 0;
+            }
+            boolean first = path == null;
+            open(current, attributes);
+            if (first && !fromStart) {
+                position = dataEnd(channel, attributes.size());
+                skipPartialLine = position > 0 && !endsLine(channel, position);
+            }
+        } else if (attributes != null && (!current.equals(path) || !keyOf(attributes).equals(fileKey))) {
+            // rotated: finish the old file, then follow the new one
+            count += read();
+            closeChannel();
+            open(current, attributes);
+        } else if (attributes != null && attributes.size() < position + length) {
+            // truncated
+            position = 0;
+            length = 0;
+            skipPartialLine = false;
+        }
+        return count + read();
+    }
+
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            closed = true;
+            thread = this.thread;
+            this.thread = null;
+            closeChannel();
+        }
+        if (thread != null && thread != Thread.currentThread()) {
+            thread.interrupt();
+        }
+    }
+
+    private void open(@NotNull Path file, @NotNull BasicFileAttributes attributes) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        path = file;
+        fileKey = keyOf(attributes);
+        position = 0;
+        length = 0;
+        skipPartialLine = false;
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Reads complete lines from <code>position</code> to the end of data.
+     */
+    private int read() throws IOException {
+        assert channel != null;
+        int count = 0;
+        while (true) {
+            if (length == buffer.length) {
+                // a line longer than the buffer
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            int n = channel.read(ByteBuffer.wrap(buffer, length, buffer.length - length), position + length);
+            if (n <= 0) {
+                return count;
+            }
+            length += n;
+
+            int start = 0;
+            boolean end = false;
+            for (int i = 0; i < length; i++) {
+                if (i == start && buffer[i] == 0) {
+                    // the unused tail of a mapped file
+                    end = true;
+                    break;
+                }
+                if (buffer[i] == '\n') {
+                    int to = i > start && buffer[i - 1] == '\r' ? i - 1 : i;
+                    if (skipPartialLine) {
+                        skipPartialLine = false;
+                    } else if (view.parse(buffer, start, to)) {
+                        onLine.fire(view.toLine());
+                        count++;
+                    }
+                    start = i + 1;
+                }
+            }
+            if (end) {
+                // read the tail again once it has been written
+                length = start;
+            }
+            if (start > 0) {
+                System.arraycopy(buffer, start, buffer, 0, length - start);
+                position += start;
+                length -= start;
+            }
+            if (end) {
+                return count;
+            }
+        }
+    }
+
+    @NotNull
+    private static Object keyOf(@NotNull BasicFileAttributes attributes) {
+        Object key = attributes.fileKey();
+        return key != null ? key : attributes.creationTime();
+    }
+
+    /**
+     * @return the position after the last non-zero byte, found by a binary
+     *         search since text never contains zero bytes.
+     */
+    private static long dataEnd(@NotNull FileChannel channel, long size) throws IOException {
+        ByteBuffer one = ByteBuffer.allocate(1);
+        long low = 0;
+        long high = size;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            one.clear();
+            if (channel.read(one, mid) == 1 && one.get(0) != 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static boolean endsLine(@NotNull FileChannel channel, long position) throws IOException {
+        ByteBuffer one = ByteBuffer.allocate(1);
+        return channel.read(one, position - 1) == 1 && one.get(0) == '\n';
+    }
+
+}
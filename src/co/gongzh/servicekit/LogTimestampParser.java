@@ -0,0 +1,132 @@
+package co.gongzh.servicekit;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * Parses timestamps in the layout of the default {@link Log} formatter,
+ * <code>yyyy-MM-ddTHH:mm:ss.SSS</code> followed by <code>Z</code> or
+ * <code>+HH:MM</code>, without going through <code>DateTimeFormatter</code>.
+ * The date of the last timestamp is cached, since consecutive lines of a
+ * log almost always share it. Holds the result of the last parse, so an
+ * instance must not be shared between threads.
+ *
+ * @author Gong Zhang
+ */
+final class LogTimestampParser {
+
+    private static final class DateCache {
+
+        final int key;
+        @NotNull final LocalDate date;
+        final long epochDay;
+
+        DateCache(int key, @NotNull LocalDate date) {
+            this.key = key;
+            this.date = date;
+            this.epochDay = date.toEpochDay();
+        }
+
+    }
+
+    // immutable, so a racy read is harmless
+    private static DateCache dateCache = new DateCache(19700101, LocalDate.of(1970, 1, 1));
+
+    private DateCache date;
+    private int hour;
+    private int minute;
+    private int second;
+    private int millis;
+    private int offsetSeconds;
+
+    /**
+     * @return {@code false} if <code>s[from, to)</code> is not in the
+     *         default layout. It may still be a valid ISO timestamp.
+     */
+    boolean parse(@NotNull CharSequence s, int from, int to) {
+        int length = to - from;
+        if (length != 24 && length != 29) {
+            return false;
+        }
+        int year = digits(s, from, 4);
+        int month = digits(s, from + 5, 2);
+        int day = digits(s, from + 8, 2);
+        hour = digits(s, from + 11, 2);
+        minute = digits(s, from + 14, 2);
+        second = digits(s, from + 17, 2);
+        millis = digits(s, from + 20, 3);
+        if ((year | month | day | hour | minute | second | millis) < 0 ||
+                s.charAt(from + 4) != '-' || s.charAt(from + 7) != '-' ||
+                (s.charAt(from + 10) != 'T' && s.charAt(from + 10) != 't') ||
+                s.charAt(from + 13) != ':' || s.charAt(from + 16) != ':' || s.charAt(from + 19) != '.' ||
+                hour > 23 || minute > 59 || second > 59) {
+            return false;
+        }
+
+        char sign = s.charAt(from + 23);
+        if (length == 24) {
+            if (sign != 'Z' && sign != 'z') {
+                return false;
+            }
+            offsetSeconds = 0;
+        } else {
+            int offsetHours = digits(s, from + 24, 2);
+            int offsetMinutes = digits(s, from + 27, 2);
+            if ((sign != '+' && sign != '-') || (offsetHours | offsetMinutes) < 0 ||
+                    s.charAt(from + 26) != ':' || offsetHours > 18 || offsetMinutes > 59) {
+                return false;
+            }
+            int offset = offsetHours * 3600 + offsetMinutes * 60;
+            if (offset > 18 * 3600) {
+                return false;
+            }
+            offsetSeconds = sign == '-' ? -offset : offset;
+        }
+
+        int key = year * 10000 + month * 100 + day;
+        DateCache cache = dateCache;
+        if (cache.key != key) {
+            try {
+                cache = new DateCache(key, LocalDate.of(year, month, day));
+            } catch (DateTimeException e) {
+                return false;
+            }
+            dateCache = cache;
+        }
+        date = cache;
+        return true;
+    }
+
+    long getEpochMillis() {
+        long seconds = date.epochDay * 86400L + hour * 3600 + minute * 60 + second - offsetSeconds;
+        return seconds * 1000L + millis;
+    }
+
+    int getOffsetSeconds() {
+        return offsetSeconds;
+    }
+
+    @NotNull
+    OffsetDateTime toDateTime() {
+        return OffsetDateTime.of(date.date, LocalTime.of(hour, minute, second, millis * 1_000_000),
+                ZoneOffset.ofTotalSeconds(offsetSeconds));
+    }
+
+    private static int digits(@NotNull CharSequence s, int from, int count) {
+        int value = 0;
+        for (int i = from; i < from + count; i++) {
+            int d = s.charAt(i) - '0';
+            if (d < 0 || d > 9) {
+                return -1;
+            }
+            value = value * 10 + d;
+        }
+        return value;
+    }
+
+}
@@ -0,0 +1,129 @@
+package co.gongzh.servicekit;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Appends to the log file through a {@link MappedByteBuffer}, so appending
+ * is a memory copy and writeback is left to the page cache.
+ * <p>
+ * The file is grown by fixed-size segments. Only one segment is mapped at a
+ * time; when it is full the next one is mapped right after it. On close the
+ * unused tail of the last segment is truncated. If the process died before
+ * that, or the file could not be truncated, the zero-filled tail is found and
+ * overwritten the next time the file is opened.
+ *
+ * @author Gong Zhang
+ */
+final class MappedLogAppender implements LogAppender {
+
+    @NotNull private final RandomAccessFile file;
+    @NotNull private final FileChannel channel;
+    private final int segmentSize;
+
+    @Nullable private MappedByteBuffer segment;
+    private long segmentStart;
+    private long syncedSegmentStart;
+    private long size;
+
+    MappedLogAppender(@NotNull File logFile, int segmentSize) throws IOException {
+        this.file = new RandomAccessFile(logFile, "rw");
+        this.channel = file.getChannel();
+        this.segmentSize = segmentSize;
+        try {
+            this.size = findEnd(channel);
+            map(size);
+            this.syncedSegmentStart = size;
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the position after the last non-zero byte.
+     */
+    private static long findEnd(@NotNull FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        long end = channel.size();
+        while (end > 0) {
+            long start = Math.max(0, end - buffer.capacity());
+            buffer.clear();
+            buffer.limit((int) (end - start));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, start + buffer.position()) < 0) {
+                    break;
+                }
+            }
+            for (int i = buffer.position() - 1; i >= 0; i--) {
+                if (buffer.get(i) != 0) {
+                    return start + i + 1;
+                }
+            }
+            end = start;
+        }
+        return 0;
+    }
+
+    private void map(long position) throws IOException {
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, position, segmentSize);
+        segmentStart = position;
+    }
+
+    @Override
+    public void append(@NotNull byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            MappedByteBuffer segment = this.segment;
+            if (segment == null) {
+                throw new IOException("log file is closed");
+            }
+            if (!segment.hasRemaining()) {
+                map(segmentStart + segmentSize);
+                continue;
+            }
+            int n = Math.min(length, segment.remaining());
+            segment.put(bytes, offset, n);
+            offset += n;
+            length -= n;
+            size += n;
+        }
+    }
+
+    @Override
+    public void sync() throws IOException {
+        if (segment != null) {
+            segment.force();
+        }
+        if (syncedSegmentStart != segmentStart) {
+            // the segments filled since the last sync are no longer mapped
+            channel.force(false);
+            syncedSegmentStart = segmentStart;
+        }
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        segment = null;
+        try {
+            channel.truncate(size);
+        } catch (IOException ignored) {
+            // the mapping is only released when it is garbage collected, and
+            // Windows refuses to truncate a file that is still mapped
+        } finally {
+            file.close();
+        }
+    }
+
+}
@@ -0,0 +1,329 @@
+package co.gongzh.servicekit;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A {@link LogFileResolver} that always writes to the same file and
+ * rotates it by size and/or by calendar period.
+ * <p>
+ * A rotated file is renamed to <code>&lt;name&gt;.&lt;yyyy-MM-dd'T'HH-mm-ss&gt;</code>
+ * and, if compression is on, gzip-compressed on a background thread. Only
+ * the newest archives are kept when a retention limit is set. The rotation
+ * check runs on the log writer once per batch, so logging calls never pay
+ * for it.
+ *
+ * @author Gong Zhang
+ */
+public class RotatingLogFileResolver implements LogFileResolver {
+
+    private static final DateTimeFormatter ARCHIVE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH-mm-ss");
+    private static final String GZIP_SUFFIX = ".gz";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    @NotNull private final File file;
+    @NotNull private final Pattern archivePattern;
+    @NotNull private final ZoneId zoneId;
+
+    private long maxBytes = 0;
+    @Nullable private ChronoUnit period = null;
+    private int maxArchives = 0;
+    private boolean compress = true;
+
+    private long periodEnd = Long.MIN_VALUE;
+
+    @Nullable private ExecutorService archiver;
+
+    public RotatingLogFileResolver(@NotNull File file) {
+        this(file, ZoneId.systemDefault());
+    }
+
+    public RotatingLogFileResolver(@NotNull File file, @NotNull ZoneId zoneId) {
+        this.file = file;
+        this.zoneId = zoneId;
+        this.archivePattern = Pattern.compile(Pattern.quote(file.getName()) +
+                "\\.(\\d{4}-\\d{2}-\\d{2}T\\d{2}-\\d{2}-\\d{2})(?:\\.(\\d+))?(\\.gz)?");
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Rotates once the file reaches <code>maxBytes</code>. <code>0</code>
+     * disables rotation by size, which is the default.
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    @Nullable
+    public ChronoUnit getPeriod() {
+        return period;
+    }
+
+    /**
+     * Rotates at the start of every calendar period, such as
+     * {@link ChronoUnit#DAYS} or {@link ChronoUnit#HOURS}, in the log time zone.
+     * Weeks start on Monday. Units longer than {@link ChronoUnit#YEARS} are
+     * not supported. {@code null} disables rotation by time, which is the default.
+     */
+    public synchronized void setPeriod(@Nullable ChronoUnit period) {
+        if (period != null && period != ChronoUnit.WEEKS && period != ChronoUnit.MONTHS &&
+                period != ChronoUnit.YEARS && period.getDuration().compareTo(ChronoUnit.DAYS.getDuration()) > 0) {
+            throw new IllegalArgumentException("unsupported rotation period: " + period);
+        }
+        this.period = period;
+        this.periodEnd = Long.MIN_VALUE;
+    }
+
+    public int getMaxArchives() {
+        return maxArchives;
+    }
+
+    /**
+     * Keeps only the newest <code>maxArchives</code> rotated files.
+     * <code>0</code> keeps all of them, which is the default.
+     */
+    public void setMaxArchives(int maxArchives) {
+        this.maxArchives = maxArchives;
+    }
+
+    public boolean isCompress() {
+        return compress;
+    }
+
+    /**
+     * Whether rotated files are gzip-compressed. Defaults to {@code true}.
+     */
+    public void setCompress(boolean compress) {
+        this.compress = compress;
+    }
+
+    @NotNull
+    @Override
+    public File getCurrentLogFile() {
+        return file;
+    }
+
+    @NotNull
+    @Override
+    public ZoneId getLogZoneId() {
+        return zoneId;
+    }
+
+    @Override
+    public boolean usesOnLog() {
+        return false;
+    }
+
+    @Override
+    public synchronized boolean shouldRotate(@NotNull File currentFile, long size, long now) {
+        if (maxBytes > 0 && size >= maxBytes) {
+            return true;
+        }
+        if (period != null && size > 0) {
+            if (periodEnd == Long.MIN_VALUE) {
+                // the file may be left from an earlier period
+                long modified = currentFile.lastModified();
+                periodEnd = getPeriodEnd(modified > 0 ? modified : now);
+            }
+            return now >= periodEnd;
+        }
+        return false;
+    }
+
+    @NotNull
+    @Override
+    public synchronized File onRotate(@NotNull File oldFile) throws Exception {
+        String stamp = Instant.now().atZone(zoneId).format(ARCHIVE_FORMATTER);
+        File archive = new File(oldFile.getParentFile(), oldFile.getName() + "." + stamp);
+        for (int i = 1; archive.exists() || new File(archive.getPath() + GZIP_SUFFIX).exists(); i++) {
+            archive = new File(oldFile.getParentFile(), oldFile.getName() + "." + stamp + "." + i);
+        }
+        Files.move(oldFile.toPath(), archive.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        File index = new File(oldFile.getPath() + LogIndex.SUFFIX);
+        if (index.exists()) {
+            // the time index stays with its log
+            try {
+                Files.move(index.toPath(), new File(archive.getPath() + LogIndex.SUFFIX).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException ex) {
+                boolean ignored = index.delete();
+            }
+        }
+        if (period != null) {
+            periodEnd = getPeriodEnd(System.currentTimeMillis());
+        }
+
+        final File rotated = archive;
+        getArchiver().execute(() -> {
+            if (compress) {
+                compress(rotated);
+            }
+            purgeArchives();
+        });
+        return file;
+    }
+
+    /**
+     * Returns the rotated files, oldest first. Files that are still
+     * being compressed are listed under their uncompressed name.
+     */
+    @NotNull
+    public List<File> getArchivedFiles() {
+        File dir = file.getAbsoluteFile().getParentFile();
+        File[] files = dir.listFiles((d, name) -> archivePattern.matcher(name).matches());
+        if (files == null) {
+            return new ArrayList<>();
+        }
+        List<File> result = new ArrayList<>();
+        for (File f : files) {
+            String name = f.getName();
+            if (name.endsWith(GZIP_SUFFIX) ||
+                    !new File(dir, name + GZIP_SUFFIX).exists()) {
+                result.add(f);
+            }
+        }
+        result.sort(Comparator.comparing((File f) -> archiveMatcher(f).group(1))
+                .thenComparingInt(f -> {
+                    String index = archiveMatcher(f).group(2);
+                    return index == null ? 0 : Integer.parseInt(index);
+                }));
+        return result;
+    }
+
+    @NotNull
+    @Override
+    public List<File> getLogFiles() {
+        List<File> files = getArchivedFiles();
+        files.add(file);
+        return files;
+    }
+
+    /**
+     * Stops the background compression and waits for pending work.
+     */
+    @Override
+    public void close() {
+        ExecutorService archiver;
+        synchronized (this) {
+            archiver = this.archiver;
+            this.archiver = null;
+        }
+        if (archiver != null) {
+            archiver.shutdown();
+            try {
+                archiver.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @NotNull
+    private Matcher archiveMatcher(@NotNull File archive) {
+        Matcher matcher = archivePattern.matcher(archive.getName());
+        boolean ignored = matcher.matches();
+        return matcher;
+    }
+
+    private long getPeriodEnd(long time) {
+        assert period != null;
+        ZonedDateTime start;
+        switch (period) {
+            case YEARS:
+                start = Instant.ofEpochMilli(time).atZone(zoneId).truncatedTo(ChronoUnit.DAYS).withDayOfYear(1);
+                break;
+            case MONTHS:
+                start = Instant.ofEpochMilli(time).atZone(zoneId).truncatedTo(ChronoUnit.DAYS).withDayOfMonth(1);
+                break;
+            case WEEKS:
+                start = Instant.ofEpochMilli(time).atZone(zoneId).truncatedTo(ChronoUnit.DAYS)
+                        .with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+                break;
+            default:
+                start = Instant.ofEpochMilli(time).atZone(zoneId).truncatedTo(period);
+                break;
+        }
+        return start.plus(1, period).toInstant().toEpochMilli();
+    }
+
+    @NotNull
+    private synchronized ExecutorService getArchiver() {
+        if (archiver == null) {
+            archiver = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "RotatingLogFileResolver.archiver");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return archiver;
+    }
+
+    private static void compress(@NotNull File source) {
+        // compress to a temporary name, so a half written archive is never listed
+        File temp = new File(source.getPath() + GZIP_SUFFIX + TEMP_SUFFIX);
+        File target = new File(source.getPath() + GZIP_SUFFIX);
+        try {
+            try (InputStream in = new FileInputStream(source);
+                 OutputStream out = new GZIPOutputStream(new FileOutputStream(temp), 65536)) {
+                byte[] buffer = new byte[65536];
+                int length;
+                while ((length = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, length);
+                }
+            }
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            System.err.println("failed to compress " + source.getName() + ": " + ex);
+            boolean ignored = temp.delete();
+            return;
+        }
+        if (!source.delete()) {
+            System.err.println("failed to delete " + source.getName() + " after compression");
+        }
+        // offsets do not apply to the compressed file
+        boolean ignored = new File(source.getPath() + LogIndex.SUFFIX).delete();
+    }
+
+    private void purgeArchives() {
+        int max = maxArchives;
+        if (max <= 0) {
+            return;
+        }
+        List<File> archives = getArchivedFiles();
+        for (File f : archives.subList(0, Math.max(0, archives.size() - max))) {
+            if (!f.delete()) {
+                System.err.println("failed to delete old log file " + f.getName());
+            }
+            boolean ignored = new File(f.getPath() + LogIndex.SUFFIX).delete();
+        }
+    }
+
+}
@@ -0,0 +1,45 @@
+package co.gongzh.servicekit;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Appends to the log file with plain <code>write</code> calls.
+ *
+ * @author Gong Zhang
+ */
+final class StreamLogAppender implements LogAppender {
+
+    @NotNull private final FileOutputStream stream;
+    private long size;
+
+    StreamLogAppender(@NotNull File file) throws IOException {
+        this.stream = new FileOutputStream(file, true);
+        this.size = stream.getChannel().size();
+    }
+
+    @Override
+    public void append(@NotNull byte[] bytes, int offset, int length) throws IOException {
+        stream.write(bytes, offset, length);
+        size += length;
+    }
+
+    @Override
+    public void sync() throws IOException {
+        stream.getFD().sync();
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        stream.close();
+    }
+
+}
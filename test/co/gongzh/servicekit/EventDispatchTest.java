@@ -0,0 +1,319 @@
+package co.gongzh.servicekit;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Gong Zhang
+ */
+public class EventDispatchTest {
+
+    @Test
+    public void observers() throws Exception {
+        EventDispatch<String> dispatch = new EventDispatch<>("test");
+        List<String> received = new ArrayList<>();
+        int first = dispatch.addObserver(e -> received.add("a" + e.arg));
+        EventObserver<String> failing = e -> {
+            throw new IllegalStateException("failed");
+        };
+        dispatch.addObserver(failing);
+        dispatch.addObserver(e -> received.add("b" + e.arg));
+        dispatch.observeOnce(e -> received.add("once" + e.arg));
+
+        List<EventDispatch.ExceptionInfo> exceptions = new ArrayList<>();
+        int handler = EventDispatch.onException.addObserver(e -> exceptions.add(e.arg));
+        try {
+            long[] id = { 0 };
+            dispatch.fire("1", eid -> id[0] = eid);
+            assertEquals(1, id[0]);
+            assertEquals(1, exceptions.size());
+            assertSame(failing, exceptions.get(0).observer);
+
+            assertNotNull(dispatch.removeObserver(first));
+            assertTrue(dispatch.removeObserver(failing));
+            dispatch.fire("2");
+            assertEquals(Arrays.asList("a1", "b1", "once1", "b2"), received);
+        } finally {
+            EventDispatch.onException.removeObserver(handler);
+        }
+    }
+
+    @Test
+    public void concurrentFire() throws Exception {
+        EventDispatch<Boolean> dispatch = new EventDispatch<>("test");
+        CountDownLatch slow = new CountDownLatch(1);
+        CountDownLatch fast = new CountDownLatch(1);
+        dispatch.addObserver(e -> {
+            if (e.arg) {
+                try {
+                    slow.await();
+                } catch (InterruptedException ignored) {
+                }
+            } else {
+                fast.countDown();
+            }
+        });
+        Thread thread = new Thread(() -> dispatch.fire(true));
+        thread.start();
+        // a fire blocked in an observer does not block other publishers
+        Thread other = new Thread(() -> dispatch.fire(false));
+        other.start();
+        assertTrue(fast.await(5, TimeUnit.SECONDS));
+        slow.countDown();
+        thread.join();
+        other.join();
+    }
+
+    @Test
+    public void asyncDelivery() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            EventDispatch<Integer> dispatch = new EventDispatch<>("test", executor);
+            List<Integer> ordered = Collections.synchronizedList(new ArrayList<>());
+            AtomicInteger unordered = new AtomicInteger();
+            CountDownLatch done = new CountDownLatch(2000);
+            dispatch.addObserver(e -> {
+                ordered.add(e.arg);
+                done.countDown();
+            }, EventDispatch.Delivery.ASYNC_ORDERED);
+            dispatch.addObserver(e -> {
+                unordered.incrementAndGet();
+                done.countDown();
+            }, EventDispatch.Delivery.ASYNC_UNORDERED);
+            for (int i = 0; i < 1000; i++) {
+                dispatch.fire(i);
+            }
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertEquals(1000, unordered.get());
+            for (int i = 0; i < 1000; i++) {
+                assertEquals(i, (int) ordered.get(i));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void conflation() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            AtomicInteger keys = new AtomicInteger();
+            EventDispatch<String> dispatch = new EventDispatch<>("test", executor, arg -> {
+                keys.incrementAndGet();
+                return arg.charAt(0);
+            });
+            List<String> single = Collections.synchronizedList(new ArrayList<>());
+            List<List<String>> batches = Collections.synchronizedList(new ArrayList<>());
+            dispatch.addObserver(e -> single.add(e.arg), EventDispatch.Delivery.ASYNC_ORDERED);
+            dispatch.addBatchObserver(events -> batches.add(events.stream().map(e -> e.arg).collect(Collectors.toList())));
+
+            // hold the executor while publishing
+            CountDownLatch hold = new CountDownLatch(1);
+            executor.execute(() -> {
+                try {
+                    hold.await();
+                } catch (InterruptedException ignored) {
+                }
+            });
+            for (String arg : new String[] { "a1", "b1", "a2", "c1", "b2", "a3" }) {
+                dispatch.fire(arg);
+            }
+            hold.countDown();
+            executor.submit(() -> {}).get();
+            executor.submit(() -> {}).get();
+
+            assertEquals(Arrays.asList("a3", "b2", "c1"), single);
+            assertEquals(Collections.singletonList(Arrays.asList("a3", "b2", "c1")), batches);
+            // the key is computed once per fire, not per observer
+            assertEquals(6, keys.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static final class Tick {
+        int producer;
+        int value;
+    }
+
+    @Test
+    public void ring() throws Exception {
+        EventRing<Tick> ring = new EventRing<>(64, Tick::new);
+        EventRing<Tick>.Reader reader = ring.addReader();
+        int producers = 4;
+        int count = 10000;
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < count; i++) {
+                    long seq = ring.next();
+                    Tick tick = ring.get(seq);
+                    tick.producer = producer;
+                    tick.value = i;
+                    ring.publish(seq);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+
+        int[] next = new int[producers];
+        int[] read = { 0 };
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (read[0] < producers * count && System.currentTimeMillis() < deadline) {
+            reader.read((tick, sequence, endOfBatch) -> {
+                // the events of each producer arrive in order
+                assertEquals(next[tick.producer]++, tick.value);
+                read[0]++;
+            }, 16);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(producers * count, read[0]);
+        assertEquals(producers * count - 1, reader.getSequence());
+        assertFalse(reader.hasAvailable());
+    }
+
+    @Test
+    public void bus() throws Exception {
+        EventBus<String> bus = new EventBus<>("test");
+        List<String> received = new ArrayList<>();
+        bus.publish("orders.eu.created", "early");
+        int exact = bus.subscribe("orders.eu.created", e -> received.add("exact " + e.dispatch.getName()));
+        bus.subscribe("orders.*.created", e -> received.add("one " + e.dispatch.getName()));
+        bus.subscribe("orders.**", e -> received.add("any " + e.dispatch.getName()));
+        bus.subscribe("**.cancelled", e -> received.add("suffix " + e.dispatch.getName()));
+
+        bus.publish("orders.eu.created", "1");
+        bus.publish("orders.us.created", "2");
+        bus.publish("orders.us.cancelled", "3");
+        bus.publish("payments", "4");
+        assertEquals(Arrays.asList(
+                "exact orders.eu.created", "one orders.eu.created", "any orders.eu.created",
+                "one orders.us.created", "any orders.us.created",
+                "any orders.us.cancelled", "suffix orders.us.cancelled"), received);
+
+        received.clear();
+        assertTrue(bus.unsubscribe(exact));
+        assertFalse(bus.unsubscribe(exact));
+        bus.publish("orders.eu.created", "5");
+        assertEquals(Arrays.asList("one orders.eu.created", "any orders.eu.created"), received);
+
+        try {
+            bus.publish("orders.*", "6");
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void busOrdered() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            EventBus<Integer> bus = new EventBus<>("test", executor);
+            int count = 2000;
+            List<Integer> received = Collections.synchronizedList(new ArrayList<>());
+            AtomicInteger active = new AtomicInteger();
+            AtomicInteger overlaps = new AtomicInteger();
+            CountDownLatch done = new CountDownLatch(count);
+            bus.subscribe("t.**", e -> {
+                if (active.incrementAndGet() > 1) {
+                    overlaps.incrementAndGet();
+                }
+                received.add(e.arg);
+                active.decrementAndGet();
+                done.countDown();
+            }, EventDispatch.Delivery.ASYNC_ORDERED);
+
+            // one queue for all topics of the subscription
+            for (int i = 0; i < count; i++) {
+                bus.publish("t." + i % 4, i);
+            }
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertEquals(0, overlaps.get());
+            for (int i = 0; i < count; i++) {
+                assertEquals(i, (int) received.get(i));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void metrics() throws Exception {
+        EventDispatch<Integer> dispatch = new EventDispatch<>("test");
+        EventObserver<Integer> fast = e -> {};
+        EventObserver<Integer> slow = e -> {
+            long end = System.nanoTime() + e.arg * 1_000_000L;
+            while (System.nanoTime() < end) {
+                Thread.yield();
+            }
+        };
+        dispatch.addObserver(fast);
+        EventDispatchMetrics metrics = dispatch.enableMetrics();
+        metrics.setSlowObserverNanos(5_000_000L);
+        dispatch.addObserver(slow);
+        dispatch.addObserver(e -> {
+            throw new IllegalStateException("failed");
+        });
+
+        List<EventDispatch.SlowObserverInfo> reports = new ArrayList<>();
+        int slowHandler = EventDispatch.onSlowObserver.addObserver(e -> reports.add(e.arg));
+        int exceptionHandler = EventDispatch.onException.addObserver(e -> {});
+        try {
+            dispatch.fire(0);
+            dispatch.fire(20);
+        } finally {
+            EventDispatch.onSlowObserver.removeObserver(slowHandler);
+            EventDispatch.onException.removeObserver(exceptionHandler);
+        }
+
+        assertEquals(2, metrics.getFireCount());
+        assertEquals(2, metrics.getExceptionCount());
+        List<EventDispatchMetrics.ObserverMetrics> observers = metrics.getObservers();
+        assertEquals(3, observers.size());
+        assertSame(fast, observers.get(0).getObserver());
+        assertEquals(2, observers.get(1).getLatency().getCount());
+        assertEquals(1, observers.get(1).getSlowCount());
+        assertTrue(observers.get(1).getLatency().getPercentileNanos(100) >= 20_000_000L);
+        assertEquals(2, observers.get(2).getExceptionCount());
+        assertEquals(1, reports.size());
+        assertEquals(2, reports.get(0).eventId);
+
+        dispatch.disableMetrics();
+        assertNull(dispatch.getMetrics());
+        dispatch.fire(0);
+        assertEquals(2, metrics.getFireCount());
+    }
+
+    @Test
+    public void histogram() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long nanos = 1; nanos <= 1000; nanos++) {
+            histogram.record(nanos);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMaxNanos());
+        long median = histogram.getPercentileNanos(50);
+        assertTrue(median >= 500 && median < 625);
+        for (long nanos : new long[] { 0, 3, 4, 7, 8, 100, 1L << 40, Long.MAX_VALUE }) {
+            int index = LatencyHistogram.indexOf(nanos);
+            assertTrue(LatencyHistogram.upperBoundOf(index) >= nanos || index == 62 * 4 - 1);
+        }
+    }
+
+}
@@ -2,7 +2,25 @@ package co.gongzh.servicekit;
 
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
 
 import static org.junit.Assert.*;
 
@@ -35,4 +53,285 @@ public class LogParserTest {
         assertEquals('w', lines.get(2).level);
     }
 
+    @Test
+    public void parseBinary() throws Exception {
+        File file = File.createTempFile("log", ".bin");
+        try {
+            LogConfig config = new LogConfig();
+            config.setFormat(LogConfig.Format.BINARY);
+            config.setConsoleEnabled(false);
+            for (int run = 0; run < 2; run++) {
+                Log log = new Log(file, ZoneId.of("Asia/Shanghai"), config);
+                log.startup();
+                log.info("Main", "run " + run);
+                log.warning("Net", "first\nsecond \u4e2d\ud83d\ude00");
+                log.error("Main", "failed");
+                log.shutdown();
+            }
+
+            List<LogParser.Line> lines;
+            try (InputStream in = new FileInputStream(file)) {
+                lines = LogParser.parseBinary(in);
+            }
+            assertEquals(8, lines.size());
+            assertEquals("run 1", lines.get(4).message);
+            assertEquals('w', lines.get(6).level);
+            assertEquals("Net", lines.get(6).tag);
+            assertEquals("second \u4e2d\ud83d\ude00", lines.get(6).message);
+            assertEquals(8 * 3600, lines.get(0).dateTime.getOffset().getTotalSeconds());
+
+            ByteArrayOutputStream text = new ByteArrayOutputStream();
+            try (InputStream in = new FileInputStream(file)) {
+                LogParser.convertBinaryToText(in, text);
+            }
+            List<LogParser.Line> converted = LogParser.parse(new String(text.toByteArray(), StandardCharsets.UTF_8));
+            assertEquals(lines.size(), converted.size());
+            for (int i = 0; i < lines.size(); i++) {
+                assertEquals(lines.get(i).timestamp, converted.get(i).timestamp);
+                assertEquals(lines.get(i).message, converted.get(i).message);
+            }
+        } finally {
+            boolean ignored = file.delete();
+        }
+    }
+
+    @Test
+    public void stream() throws Exception {
+        Path dir = Files.createTempDirectory("log");
+        Path text = dir.resolve("a.txt");
+        Path gzip = dir.resolve("b.txt.gz");
+        Path binary = dir.resolve("c.bin");
+        try {
+            byte[] log = ("2017-04-20T16:28:06.492+08:00  e  LED \tLauncher process seems dead.\r\n" +
+                          "bad line\n" +
+                          "2017-04-20T16:28:06.498+08:00  i  Cleaner \tNo old data to clear.").getBytes(StandardCharsets.UTF_8);
+            Files.write(text, log);
+            try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(gzip))) {
+                out.write(log);
+            }
+            LogConfig config = new LogConfig();
+            config.setFormat(LogConfig.Format.BINARY);
+            config.setConsoleEnabled(false);
+            Log writer = new Log(binary.toFile(), ZoneId.of("Asia/Shanghai"), config);
+            writer.startup();
+            writer.warning("Net", "binary");
+            writer.shutdown();
+
+            List<LogParser.Line> lines;
+            try (Stream<LogParser.Line> stream = LogParser.stream(Arrays.asList(text, gzip, binary))) {
+                lines = stream.collect(Collectors.toList());
+            }
+            assertEquals(5, lines.size());
+            assertEquals("Launcher process seems dead.", lines.get(0).message);
+            assertEquals("No old data to clear.", lines.get(1).message);
+            assertEquals("LED", lines.get(2).tag);
+            assertEquals("Cleaner", lines.get(3).tag);
+            assertEquals("binary", lines.get(4).message);
+        } finally {
+            Files.deleteIfExists(text);
+            Files.deleteIfExists(gzip);
+            Files.deleteIfExists(binary);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void parseParallel() throws Exception {
+        Path file = Files.createTempFile("log", ".txt");
+        try {
+            // three chunks of 1 MiB, with one record out of order
+            StringBuilder log = new StringBuilder();
+            int count = 0;
+            while (log.length() < 3 << 20) {
+                int millis = count % 1000;
+                log.append(String.format("2017-04-20T16:%02d:%02d.%03d+08:00  i  Tag \tmessage %d\n",
+                        count / 60000 % 60, count / 1000 % 60, millis, count));
+                count++;
+            }
+            log.append("2017-04-20T16:00:00.000+08:00  w  Tag \tlate\n");
+            Files.write(file, log.toString().getBytes(StandardCharsets.UTF_8));
+
+            List<LogParser.Line> lines = LogParser.parseParallel(file, new ForkJoinPool(4));
+            assertEquals(count + 1, lines.size());
+            assertEquals("message 0", lines.get(0).message);
+            assertEquals("late", lines.get(1).message);
+            assertEquals("message " + (count - 1), lines.get(count).message);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void fastTimestamps() throws Exception {
+        String[] timestamps = {
+                "2017-04-20T16:28:06.492+08:00",
+                "2016-02-29T00:00:00.000Z",
+                "1969-12-31T23:59:59.999-03:30",
+                "2017-04-20T16:28:06.49+08:00",
+                "2017-04-20T16:28:06+08:00",
+        };
+        for (String timestamp : timestamps) {
+            LogParser.Line line = LogParser.parseLine(timestamp + "  i  Tag \tmessage");
+            assertNotNull(line);
+            assertEquals(timestamp, line.timestamp);
+            assertEquals(OffsetDateTime.parse(timestamp), line.dateTime);
+        }
+        assertNull(LogParser.parseLine("2017-02-30T16:28:06.492+08:00  i  Tag \tmessage"));
+        assertNull(LogParser.parseLine("2017-04-20T24:28:06.492+08:00  i  Tag \tmessage"));
+    }
+
+    @Test
+    public void scan() throws Exception {
+        Path file = Files.createTempFile("log", ".txt");
+        try {
+            String log = "2017-04-20T16:28:06.492+08:00  e  LED \tLauncher process seems dead.\n" +
+                         "bad line\n" +
+                         "2017-04-20T16:28:06.498+08:00  i  Cleaner \tNo old data to clear.\n" +
+                         "2017-04-20T16:28:06.724Z  w  \u4e2d \tStatus approved.\n";
+            Files.write(file, log.getBytes(StandardCharsets.UTF_8));
+            List<LogParser.Line> lines = new ArrayList<>();
+            List<LogParser.Line> expected = LogParser.parse(log);
+            LogParser.scan(file, view -> {
+                assertEquals(expected.get(lines.size()).dateTime.toInstant().toEpochMilli(), view.getEpochMillis());
+                assertTrue(view.tagEquals(expected.get(lines.size()).tag));
+                assertFalse(view.tagEquals("Other"));
+                lines.add(view.toLine());
+                return true;
+            });
+            assertEquals(3, lines.size());
+            for (int i = 0; i < lines.size(); i++) {
+                assertEquals(expected.get(i).dateTime, lines.get(i).dateTime);
+                assertEquals(expected.get(i).timestamp, lines.get(i).timestamp);
+                assertEquals(expected.get(i).level, lines.get(i).level);
+                assertEquals(expected.get(i).tag, lines.get(i).tag);
+                assertEquals(expected.get(i).message, lines.get(i).message);
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void timeRange() throws Exception {
+        Path dir = Files.createTempDirectory("log");
+        Path built = dir.resolve("built.txt");
+        Path written = dir.resolve("written.txt");
+        try {
+            StringBuilder log = new StringBuilder();
+            for (int i = 0; i < 20000; i++) {
+                log.append(String.format("2017-04-20T16:%02d:%02d.%03d+08:00  i  Tag \tmessage %d\n",
+                        i / 60000 % 60, i / 1000 % 60, i % 1000, i));
+            }
+            Files.write(built, log.toString().getBytes(StandardCharsets.UTF_8));
+            Instant from = OffsetDateTime.parse("2017-04-20T16:00:12.500+08:00").toInstant();
+            Instant to = OffsetDateTime.parse("2017-04-20T16:00:13.000+08:00").toInstant();
+            List<LogParser.Line> lines;
+            try (Stream<LogParser.Line> stream = LogParser.stream(built, from, to)) {
+                lines = stream.collect(Collectors.toList());
+            }
+            assertEquals(500, lines.size());
+            assertEquals("message 12500", lines.get(0).message);
+            assertFalse(Files.exists(dir.resolve("built.txt.idx")));
+            try (Stream<LogParser.Line> stream = LogParser.stream(built, from, to)) {
+                assertEquals(500, stream.count());
+            }
+
+            LogConfig config = new LogConfig();
+            config.setConsoleEnabled(false);
+            config.setIndexRecords(100);
+            Log writer = new Log(written.toFile(), ZoneId.systemDefault(), config);
+            writer.startup();
+            for (int i = 0; i < 1000; i++) {
+                writer.info("Tag", "message " + i);
+            }
+            writer.shutdown();
+            assertEquals(8 + 10 * 16, Files.size(dir.resolve("written.txt.idx")));
+            try (Stream<LogParser.Line> stream = LogParser.stream(written, Instant.EPOCH, Instant.now().plusSeconds(1))) {
+                assertEquals(1000, stream.count());
+            }
+        } finally {
+            for (String name : new String[] { "built.txt", "built.txt.idx", "written.txt", "written.txt.idx" }) {
+                Files.deleteIfExists(dir.resolve(name));
+            }
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void query() throws Exception {
+        Path dir = Files.createTempDirectory("log");
+        RotatingLogFileResolver resolver = new RotatingLogFileResolver(dir.resolve("app.log").toFile());
+        Path archive = dir.resolve("app.log.2017-04-20T00-00-00.gz");
+        try {
+            try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(archive))) {
+                out.write(("2017-04-20T16:28:06.492+08:00  e  Net \tconnection timeout\n" +
+                           "2017-04-20T16:28:06.498+08:00  i  Net \tconnection timeout\n").getBytes(StandardCharsets.UTF_8));
+            }
+            Files.write(dir.resolve("app.log"), ("2017-04-21T10:00:00.000+08:00  w  Net \tread timeout\n" +
+                    "2017-04-21T10:00:01.000+08:00  w  Db \tquery timeout\n" +
+                    "2017-04-21T10:00:02.000+08:00  e  Net \tconnection reset\n" +
+                    "2017-04-21T10:00:03.000+08:00  w  Net \twrite timeout\n").getBytes(StandardCharsets.UTF_8));
+
+            List<String> messages;
+            try (Stream<LogParser.Line> stream = new LogQuery().level('w').tags("Net").contains("timeout").run(resolver)) {
+                messages = stream.map(l -> l.message).collect(Collectors.toList());
+            }
+            assertEquals(Arrays.asList("connection timeout", "read timeout", "write timeout"), messages);
+
+            try (Stream<LogParser.Line> stream = new LogQuery().matches("^(read|write) ").offset(1).limit(1).run(resolver)) {
+                messages = stream.map(l -> l.message).collect(Collectors.toList());
+            }
+            assertEquals(Arrays.asList("write timeout"), messages);
+
+            Instant from = OffsetDateTime.parse("2017-04-21T10:00:01.000+08:00").toInstant();
+            try (Stream<LogParser.Line> stream = new LogQuery().between(from, from.plusSeconds(2)).run(resolver)) {
+                messages = stream.map(l -> l.message).collect(Collectors.toList());
+            }
+            assertEquals(Arrays.asList("query timeout", "connection reset"), messages);
+        } finally {
+            Files.deleteIfExists(archive);
+            Files.deleteIfExists(dir.resolve("app.log"));
+            Files.deleteIfExists(dir.resolve("app.log.idx"));
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void tail() throws Exception {
+        Path dir = Files.createTempDirectory("log");
+        Path file = dir.resolve("app.log");
+        String first = "2017-04-21T10:00:00.000+08:00  i  Net \tfirst\n";
+        try (LogTailer tailer = new LogTailer(file, false)) {
+            List<String> messages = new ArrayList<>();
+            tailer.onLine.addObserver(e -> messages.add(e.arg.message));
+            Files.write(file, first.getBytes(StandardCharsets.UTF_8));
+            assertEquals(0, tailer.poll());
+
+            Files.write(file, ("2017-04-21T10:00:01.000+08:00  w  Net \tsecond\n" +
+                    "2017-04-21T10:00:02.000+08:00  e  Net \tthi").getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.APPEND);
+            assertEquals(1, tailer.poll());
+            Files.write(file, "rd\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+            assertEquals(1, tailer.poll());
+            assertEquals(Arrays.asList("second", "third"), messages);
+
+            // rotated: the rest of the old file comes before the new file
+            Files.write(file, "2017-04-21T10:00:03.000+08:00  i  Net \tfourth\n".getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.APPEND);
+            Files.move(file, dir.resolve("app.log.1"));
+            Files.write(file, "2017-04-21T10:00:04.000+08:00  i  Net \tfifth\n".getBytes(StandardCharsets.UTF_8));
+            assertEquals(2, tailer.poll());
+
+            // truncated
+            Files.write(file, "2017-04-21T10:00:05.000+08:00  i  Net \tsix\n".getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            assertEquals(1, tailer.poll());
+            assertEquals(Arrays.asList("second", "third", "fourth", "fifth", "six"), messages);
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(dir.resolve("app.log.1"));
+            Files.delete(dir);
+        }
+    }
+
 }
@@ -5,7 +5,30 @@ import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
 
 /**
  * @author Gong Zhang
@@ -52,6 +75,33 @@ public class LogTest {
         ignored = new File("log2.txt").delete();
     }
 
+    private interface LogBody {
+        void run(@NotNull Log log, @NotNull File file) throws Exception;
+    }
+
+    /**
+     * Runs <code>body</code> with a log on a new temporary file, shuts the
+     * log down and returns what was written. Disables the console of
+     * <code>config</code>.
+     */
+    @NotNull
+    private static String writeLog(@NotNull LogConfig config, @NotNull LogBody body) throws Exception {
+        File file = File.createTempFile("log", ".txt");
+        try {
+            config.setConsoleEnabled(false);
+            Log log = new Log(file, ZoneId.systemDefault(), config);
+            log.startup();
+            try {
+                body.run(log, file);
+            } finally {
+                log.shutdown();
+            }
+            return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        } finally {
+            boolean ignored = file.delete();
+        }
+    }
+
     @Test
     public void i() throws Exception {
         Log.i(TAG, "This is an information.");
@@ -71,4 +121,500 @@ public class LogTest {
         }
     }
 
+    @Test
+    public void ringBuffer() throws Exception {
+        LogConfig config = new LogConfig();
+        config.setMode(Log.Mode.RING_BUFFER);
+        config.setQueueCapacity(16);
+        List<LogParser.Line> lines = LogParser.parse(writeLog(config, (log, file) -> {
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                final int n = t;
+                Thread thread = new Thread(() -> {
+                    for (int i = 0; i < 250; i++) {
+                        log.info(TAG, "thread " + n + " record " + i);
+                    }
+                });
+                threads.add(thread);
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }));
+        assertEquals(1000, lines.size());
+    }
+
+    @Test
+    public void flushPolicy() throws Exception {
+        LogConfig config = new LogConfig();
+        config.setMode(Log.Mode.RING_BUFFER);
+        config.setFlushPolicy(LogConfig.FlushPolicy.size(1 << 20));
+        List<LogParser.Line> lines = LogParser.parse(writeLog(config, (log, file) -> {
+            for (int i = 0; i < 10; i++) {
+                log.info(TAG, "record " + i);
+            }
+            Thread.sleep(200);
+            assertEquals(0, file.length());
+        }));
+        assertEquals(10, lines.size());
+    }
+
+    @Test
+    public void executorBatch() throws Exception {
+        File file = File.createTempFile("log", ".txt");
+        AtomicInteger batches = new AtomicInteger();
+        LogFileResolver resolver = new LogFileResolver() {
+            @Override
+            public @NotNull File getCurrentLogFile() {
+                return file;
+            }
+
+            @Override
+            public boolean shouldRotate(@NotNull File currentFile, long size, long now) {
+                // asked once before every batch
+                batches.incrementAndGet();
+                return false;
+            }
+        };
+        CountDownLatch stall = new CountDownLatch(1);
+        Log.setFilter((time, level, tag, message) -> {
+            if (tag.equals("Stall")) {
+                try {
+                    stall.await();
+                } catch (InterruptedException ignored) {
+                }
+            }
+            return true;
+        });
+        try {
+            LogConfig config = new LogConfig();
+            config.setConsoleEnabled(false);
+            Log log = new Log(resolver, config);
+            log.startup();
+            log.info("Stall", "writer is stalled");
+            for (int i = 0; i < 100; i++) {
+                log.info(TAG, "record " + i);
+            }
+            stall.countDown();
+            log.shutdown();
+
+            String text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+            assertEquals(101, LogParser.parse(text).size());
+            assertEquals(1, batches.get());
+        } finally {
+            stall.countDown();
+            Log.setFilter(null);
+            boolean ignored = file.delete();
+        }
+    }
+
+    @Test
+    public void encoder() throws Exception {
+        ZoneId zoneId = ZoneOffset.ofHours(8);
+        LogEncoder encoder = new LogEncoder(zoneId);
+        LogByteBuffer buffer = new LogByteBuffer(16);
+        String message = "x\u00e9\u4e2d\ud83d\ude00 \t end";
+        long[] times = { 1492676886492L, 1492676886005L, 1492676887000L, 0L };
+        for (long time : times) {
+            buffer.clear();
+            encoder.encodeLine(time, Log.DEFAULT_DATE_TIME_FORMATTER, 'w', "Tag", message, 0, message.length(), buffer);
+            String timestamp = OffsetDateTime.ofInstant(Instant.ofEpochMilli(time), zoneId).format(Log.DEFAULT_DATE_TIME_FORMATTER);
+            String expected = String.format(Locale.US, "%s  %c  %s \t%s\n", timestamp, 'w', "Tag", message);
+            assertEquals(expected, new String(buffer.array, 0, buffer.length, StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void levels() throws Exception {
+        Log.setLevel("Quiet", 'e');
+        try {
+            assertFalse(Log.isLoggable("Quiet", 'w'));
+            assertTrue(Log.isLoggable("Quiet", 'e'));
+            assertTrue(Log.isLoggable(TAG, 'i'));
+            Log.i("Quiet", () -> {
+                fail("supplier of a disabled level must not be called");
+                return "";
+            });
+        } finally {
+            Log.removeLevel("Quiet");
+        }
+        assertTrue(Log.isLoggable("Quiet", 'i'));
+    }
+
+    @Test
+    public void overflow() throws Exception {
+        CountDownLatch stall = new CountDownLatch(1);
+        Log.setFilter((time, level, tag, message) -> {
+            if (tag.equals("Stall")) {
+                try {
+                    stall.await();
+                } catch (InterruptedException ignored) {
+                }
+            }
+            return true;
+        });
+        try {
+            LogConfig config = new LogConfig();
+            config.setMode(Log.Mode.RING_BUFFER);
+            config.setQueueCapacity(4);
+            config.setOverflowPolicy(LogConfig.OverflowPolicy.DROP_NEWEST);
+            long[] dropped = new long[1];
+            List<LogParser.Line> lines = LogParser.parse(writeLog(config, (log, file) -> {
+                log.info("Stall", "writer is stalled");
+                for (int i = 0; i < 20; i++) {
+                    log.info(TAG, "record " + i);
+                }
+                dropped[0] = log.getDroppedCount();
+                stall.countDown();
+            }));
+            assertTrue(dropped[0] > 0);
+            assertEquals(21 - dropped[0] + 1, lines.size());
+            assertEquals(dropped[0] + " records dropped", lines.get(lines.size() - 1).message);
+        } finally {
+            stall.countDown();
+            Log.setFilter(null);
+        }
+    }
+
+    @Test
+    public void writerOverflow() throws Exception {
+        Log[] target = new Log[1];
+        Log.setFilter((time, level, tag, message) -> {
+            Log log = target[0];
+            if (tag.equals("Echo") && log != null) {
+                // logs on the writer thread while the ring is full
+                for (int i = 0; i < 10; i++) {
+                    log.info("Inner", "echo " + i);
+                }
+            }
+            return true;
+        });
+        try {
+            LogConfig config = new LogConfig();
+            config.setMode(Log.Mode.RING_BUFFER);
+            config.setQueueCapacity(4);
+            long[] dropped = new long[1];
+            writeLog(config, (log, file) -> {
+                target[0] = log;
+                log.info("Echo", "from the caller");
+                Thread.sleep(100);
+                target[0] = null;
+                dropped[0] = log.getDroppedCount();
+            });
+            assertTrue(dropped[0] > 0);
+
+            long[] blocked = new long[1];
+            LogConfig unbounded = new LogConfig();
+            assertEquals(0, unbounded.getQueueCapacity());
+            List<LogParser.Line> lines = LogParser.parse(writeLog(unbounded, (log, file) -> {
+                for (int i = 0; i < 20000; i++) {
+                    log.info(TAG, "record " + i);
+                }
+                blocked[0] = log.getBlockedCount();
+            }));
+            assertEquals(0, blocked[0]);
+            assertEquals(20000, lines.size());
+        } finally {
+            Log.setFilter(null);
+        }
+    }
+
+    @Test
+    public void consoleOverflow() throws Exception {
+        File file = File.createTempFile("log", ".txt");
+        PrintStream out = System.out;
+        CountDownLatch stall = new CountDownLatch(1);
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                try {
+                    stall.await();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }));
+        try {
+            LogConfig config = new LogConfig();
+            config.setMode(Log.Mode.RING_BUFFER);
+            Log log = new Log(file, ZoneId.systemDefault(), config);
+            log.startup();
+            for (int i = 0; i < 5000; i++) {
+                log.info(TAG, "record " + i);
+            }
+            while (log.getStats().count(TAG, 'i', LogStats.Window.MINUTE) < 5000) {
+                Thread.sleep(10);
+            }
+            stall.countDown();
+            log.shutdown();
+
+            long dropped = log.getConsoleDroppedCount();
+            assertTrue(dropped > 0);
+            String text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+            List<LogParser.Line> lines = LogParser.parse(text);
+            assertEquals(5001, lines.size());
+            assertTrue(lines.get(5000).message.endsWith(" lines dropped by the console"));
+        } finally {
+            stall.countDown();
+            System.setOut(out);
+            boolean ignored = file.delete();
+        }
+    }
+
+    @Test
+    public void memoryMapped() throws Exception {
+        File file = File.createTempFile("log", ".txt");
+        try {
+            LogConfig config = new LogConfig();
+            config.setMode(Log.Mode.RING_BUFFER);
+            config.setAppender(LogConfig.Appender.MEMORY_MAPPED);
+            config.setSegmentSize(256);
+            config.setConsoleEnabled(false);
+            for (int run = 0; run < 2; run++) {
+                Log log = new Log(file, ZoneId.systemDefault(), config);
+                log.startup();
+                for (int i = 0; i < 50; i++) {
+                    log.info(TAG, "run " + run + " record " + i);
+                }
+                log.shutdown();
+                // a tail left by a crash is overwritten by the next run
+                Files.write(file.toPath(), new byte[100], StandardOpenOption.APPEND);
+            }
+
+            String text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+            List<LogParser.Line> lines = LogParser.parse(text);
+            assertEquals(100, lines.size());
+            assertEquals("run 1 record 49", lines.get(99).message);
+        } finally {
+            boolean ignored = file.delete();
+        }
+    }
+
+    @Test
+    public void rotation() throws Exception {
+        Path dir = Files.createTempDirectory("logs");
+        File file = new File(dir.toFile(), "test.log");
+        RotatingLogFileResolver resolver = new RotatingLogFileResolver(file);
+        resolver.setMaxBytes(200);
+        LogConfig config = new LogConfig();
+        // write every record on its own, so that each may rotate the file
+        config.setFlushPolicy(LogConfig.FlushPolicy.size(1));
+        config.setConsoleEnabled(false);
+        try {
+            Log log = new Log(resolver, config);
+            log.startup();
+            for (int i = 0; i < 20; i++) {
+                log.info(TAG, "record " + i);
+            }
+            log.shutdown();
+
+            List<File> archives = resolver.getArchivedFiles();
+            assertTrue(archives.size() > 2);
+            StringBuilder text = new StringBuilder();
+            for (File archive : archives) {
+                assertTrue(archive.getName().endsWith(".gz"));
+                try (InputStream in = new GZIPInputStream(new FileInputStream(archive))) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[1024];
+                    int length;
+                    while ((length = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, length);
+                    }
+                    text.append(new String(out.toByteArray(), StandardCharsets.UTF_8));
+                }
+            }
+            text.append(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+            List<LogParser.Line> lines = LogParser.parse(text.toString());
+            assertEquals(20, lines.size());
+            assertEquals("record 19", lines.get(19).message);
+
+            resolver.setMaxArchives(2);
+            log = new Log(resolver, config);
+            log.startup();
+            for (int i = 0; i < 10; i++) {
+                log.info(TAG, "record " + i);
+            }
+            log.shutdown();
+            assertEquals(2, resolver.getArchivedFiles().size());
+        } finally {
+            File[] files = dir.toFile().listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    boolean ignored = f.delete();
+                }
+            }
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void rotationPeriod() throws Exception {
+        File file = File.createTempFile("log", ".txt");
+        try {
+            RotatingLogFileResolver resolver = new RotatingLogFileResolver(file);
+            try {
+                resolver.setPeriod(ChronoUnit.DECADES);
+                fail("a period longer than a year must be rejected");
+            } catch (IllegalArgumentException ignored) {
+            }
+            resolver.setPeriod(ChronoUnit.WEEKS);
+            long now = System.currentTimeMillis();
+            assertFalse(resolver.shouldRotate(file, 10, now));
+            assertTrue(resolver.shouldRotate(file, 10, now + 8 * 24 * 3600_000L));
+        } finally {
+            boolean ignored = file.delete();
+        }
+    }
+
+    @Test
+    public void binaryRotation() throws Exception {
+        Path dir = Files.createTempDirectory("logs");
+        File file = new File(dir.toFile(), "test.bin");
+        RotatingLogFileResolver resolver = new RotatingLogFileResolver(file);
+        resolver.setMaxBytes(100);
+        resolver.setCompress(false);
+        LogConfig config = new LogConfig();
+        config.setFormat(LogConfig.Format.BINARY);
+        config.setFlushPolicy(LogConfig.FlushPolicy.size(1));
+        config.setConsoleEnabled(false);
+        try {
+            Log log = new Log(resolver, config);
+            log.startup();
+            for (int i = 0; i < 20; i++) {
+                log.info(TAG, "record " + i);
+            }
+            log.shutdown();
+
+            List<File> files = resolver.getLogFiles();
+            assertTrue(files.size() > 2);
+            List<LogParser.Line> lines = new ArrayList<>();
+            for (File f : files) {
+                try (InputStream in = new FileInputStream(f)) {
+                    List<LogParser.Line> part = LogParser.parseBinary(in);
+                    assertFalse(part.isEmpty());
+                    lines.addAll(part);
+                }
+            }
+            assertEquals(20, lines.size());
+            for (int i = 0; i < 20; i++) {
+                assertEquals(TAG, lines.get(i).tag);
+                assertEquals("record " + i, lines.get(i).message);
+            }
+        } finally {
+            File[] files = dir.toFile().listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    boolean ignored = f.delete();
+                }
+            }
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void repeatedExceptions() throws Exception {
+        LogConfig config = new LogConfig();
+        config.setMode(Log.Mode.RING_BUFFER);
+        config.setRepeatWindowMillis(60_000);
+        List<LogParser.Line> lines = LogParser.parse(writeLog(config, (log, file) -> {
+            for (int i = 0; i < 100; i++) {
+                try {
+                    int ignored = Integer.parseInt("x");
+                } catch (NumberFormatException ex) {
+                    log.error(TAG, "parse failed", ex);
+                }
+            }
+        }));
+        assertEquals("parse failed", lines.get(0).message);
+        assertEquals("java.lang.NumberFormatException: For input string: \"x\"", lines.get(1).message);
+        assertEquals(1, lines.stream().filter(l -> l.message.equals("parse failed")).count());
+        assertEquals("parse failed java.lang.NumberFormatException: For input string: \"x\" (repeated 99 times)",
+                lines.get(lines.size() - 1).message);
+    }
+
+    @Test
+    public void rateLimit() throws Exception {
+        List<LogParser.Line> lines = LogParser.parse(writeLog(new LogConfig(), (log, file) -> {
+            log.setRateLimit("limited", 'w', 1, 5);
+            log.setInfoSampleRate(0);
+            for (int i = 0; i < 100; i++) {
+                log.warning("limited", "warning " + i);
+                log.info("sampled", "info " + i);
+            }
+            log.error("limited", "error");
+        }));
+        assertEquals(1, Log.getSharedInfoSampleRate(), 0);
+        assertEquals(5, lines.stream().filter(l -> l.message.startsWith("warning")).count());
+        assertEquals(0, lines.stream().filter(l -> l.tag.equals("sampled")).count());
+        assertEquals(1, lines.stream().filter(l -> l.message.equals("error")).count());
+        assertTrue(lines.stream().anyMatch(l -> l.message.equals("95 records of limited (w) suppressed by rate limit")));
+        assertTrue(lines.stream().anyMatch(l -> l.message.equals("100 info records skipped by sampling")));
+    }
+
+    @Test
+    public void structured() throws Exception {
+        LogConfig config = new LogConfig();
+        config.setMode(Log.Mode.RING_BUFFER);
+        List<LogParser.Line> lines = LogParser.parse(writeLog(config, (log, file) ->
+                log.info(TAG).with("path", "/index").with("status", 200).with("ms", 1.5).log("served {path}")));
+        assertEquals("served /index status=200 ms=1.5", lines.get(0).message);
+
+        config.setFormat(LogConfig.Format.JSON);
+        String line = writeLog(config, (log, file) ->
+                log.warning(TAG).with("key", "a\"b").with("ok", true).with("n", -42L).log("line1\nline2"));
+        assertTrue(line.startsWith("{\"time\":\""));
+        assertTrue(line.endsWith(",\"level\":\"w\",\"tag\":\"" + TAG + "\",\"message\":\"line1\\nline2\"," +
+                "\"fields\":{\"key\":\"a\\\"b\",\"ok\":true,\"n\":-42}}\n"));
+    }
+
+    @Test
+    public void entryReuse() throws Exception {
+        LogConfig config = new LogConfig();
+        List<LogParser.Line> lines = LogParser.parse(writeLog(config, (log, file) -> {
+            // abandoned without log()
+            LogEntry abandoned = log.info(TAG).with("lost", 1);
+            LogEntry entry = log.info(TAG);
+            assertNotSame(abandoned, entry);
+            entry.log("first");
+            // the entry replaced the abandoned one for reuse
+            LogEntry reused = log.info(TAG);
+            assertSame(entry, reused);
+            reused.with("nested", nested(log)).log("outer {nested}");
+        }));
+        assertEquals(3, lines.size());
+        assertEquals("first", lines.get(0).message);
+        assertEquals("inner", lines.get(1).message);
+        assertEquals("outer 1", lines.get(2).message);
+    }
+
+    private static int nested(@NotNull Log log) {
+        log.info(TAG).log("inner");
+        return 1;
+    }
+
+    @Test
+    public void stats() throws Exception {
+        LogStats stats = new LogStats();
+        long now = 1_500_000_000_000L;
+        stats.record(now - 30_000, 'e', "Net");
+        stats.record(now - 200_000, 'e', "Net");
+        stats.record(now - 1_000_000, 'e', "Db");
+        stats.record(now - 2_000_000, 'w', "Db");
+        stats.record(now - 5_000_000, 'e', "Db");
+        assertEquals(1, stats.count("Net", 'e', LogStats.Window.MINUTE, now));
+        assertEquals(2, stats.count("Net", 'e', LogStats.Window.FIVE_MINUTES, now));
+        assertEquals(3, stats.count(null, 'e', LogStats.Window.HOUR, now));
+        assertEquals(0, stats.count("Db", 'i', LogStats.Window.HOUR, now));
+
+        LogStats[] logStats = new LogStats[1];
+        writeLog(new LogConfig(), (log, file) -> {
+            logStats[0] = log.getStats();
+            log.error("Net", "reset");
+            log.error("Net", "timeout");
+            log.warning("Db", "slow");
+        });
+        assertEquals(2, logStats[0].count("Net", 'e', LogStats.Window.MINUTE));
+        assertEquals(Collections.singletonMap("Db", 1L), logStats[0].countsByTag('w', LogStats.Window.MINUTE));
+    }
+
 }